@@ -0,0 +1,13 @@
+package core.ext.cosmos;
+
+import java.util.List;
+
+/**
+ * @author Neal
+ */
+public interface ChangeFeedHandler<T> {
+    /**
+     * batch is called in parallel per partition, throw exception to retry the batch from last checkpoint
+     */
+    void handle(List<T> entities) throws Exception;
+}
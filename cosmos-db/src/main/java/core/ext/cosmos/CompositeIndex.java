@@ -0,0 +1,24 @@
+package core.ext.cosmos;
+
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * fields with same name form one composite index ordered by order, e.g. for ORDER BY c.status, c.created_time DESC
+ *
+ * @author Neal
+ */
+@Target(FIELD)
+@Retention(RUNTIME)
+@Repeatable(CompositeIndexes.class)
+public @interface CompositeIndex {
+    String name();
+
+    int order();
+
+    boolean descending() default false;
+}
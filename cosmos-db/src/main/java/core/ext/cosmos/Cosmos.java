@@ -1,10 +1,9 @@
 package core.ext.cosmos;
 
 /**
+ * change feed is registered via CosmosConfig.changeFeed(entityClass, handler)
+ *
  * @author Neal
  */
 public interface Cosmos {
-    //todo add change feed handle
-
-
 }
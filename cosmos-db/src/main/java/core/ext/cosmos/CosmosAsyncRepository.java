@@ -0,0 +1,37 @@
+package core.ext.cosmos;
+
+import com.azure.cosmos.models.CosmosQueryRequestOptions;
+import com.azure.cosmos.models.SqlQuerySpec;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * futures complete on sdk io threads, must not block in callbacks, chain with thenXXXAsync to run blocking work on own executor,
+ * completed operation is tracked into current action (elapsed, docs, request charge) when action thread joins returned or dependent future,
+ * or calls next cosmos operation, operations are throttled without blocking caller thread
+ *
+ * @author Neal
+ */
+public interface CosmosAsyncRepository<T> {
+    CompletableFuture<Optional<T>> get(String id);
+
+    CompletableFuture<Optional<T>> get(String id, String partitionKey);
+
+    CompletableFuture<Void> upsert(T entity);
+
+    CompletableFuture<Void> insert(T entity);
+
+    <V> CompletableFuture<Optional<V>> findOne(SqlQuerySpec query, Class<V> clazz);
+
+    <V> CompletableFuture<Optional<V>> findOne(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz);
+
+    <V> CompletableFuture<List<V>> find(SqlQuerySpec query, Class<V> clazz);
+
+    <V> CompletableFuture<List<V>> find(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz);
+
+    CompletableFuture<Void> delete(String id);
+
+    CompletableFuture<Void> delete(String id, String partitionKey);
+}
@@ -0,0 +1,41 @@
+package core.ext.cosmos;
+
+/**
+ * operation of transactional batch, all operations of one batch must share same partition key
+ *
+ * @author Neal
+ */
+public final class CosmosBatchOperation<T> {
+    public static <T> CosmosBatchOperation<T> insert(T entity) {
+        return new CosmosBatchOperation<>(Type.INSERT, entity, null);
+    }
+
+    public static <T> CosmosBatchOperation<T> upsert(T entity) {
+        return new CosmosBatchOperation<>(Type.UPSERT, entity, null);
+    }
+
+    /**
+     * fails if entity not exists
+     */
+    public static <T> CosmosBatchOperation<T> replace(T entity) {
+        return new CosmosBatchOperation<>(Type.REPLACE, entity, null);
+    }
+
+    public static <T> CosmosBatchOperation<T> delete(String id) {
+        return new CosmosBatchOperation<>(Type.DELETE, null, id);
+    }
+
+    public final Type type;
+    public final T entity;
+    public final String id;
+
+    private CosmosBatchOperation(Type type, T entity, String id) {
+        this.type = type;
+        this.entity = entity;
+        this.id = id;
+    }
+
+    public enum Type {
+        INSERT, UPSERT, REPLACE, DELETE
+    }
+}
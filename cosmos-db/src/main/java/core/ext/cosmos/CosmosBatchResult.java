@@ -0,0 +1,20 @@
+package core.ext.cosmos;
+
+import java.util.List;
+
+/**
+ * @author Neal
+ */
+public class CosmosBatchResult {
+    /**
+     * batch is atomic, if any operation failed, none of operations is applied, check results to find the failed one
+     */
+    public boolean success;
+    public int statusCode;
+    public double requestCharge;
+
+    /**
+     * in the same order as operations
+     */
+    public List<CosmosBulkResult> results;
+}
@@ -0,0 +1,11 @@
+package core.ext.cosmos;
+
+/**
+ * @author Neal
+ */
+public class CosmosBulkResult {
+    public String id;
+    public boolean success;
+    public int statusCode;
+    public double requestCharge;
+}
@@ -3,12 +3,17 @@ package core.ext.cosmos;
 import com.azure.cosmos.ConsistencyLevel;
 import com.azure.cosmos.CosmosClient;
 import com.azure.cosmos.CosmosClientBuilder;
+import com.azure.cosmos.CosmosContainer;
 import com.azure.cosmos.CosmosDatabase;
+import com.azure.cosmos.models.CosmosContainerProperties;
+import com.azure.cosmos.models.IndexingPolicy;
+import core.ext.cosmos.impl.CosmosClassValidator;
 import core.framework.util.Properties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
+import java.util.List;
 import java.util.function.Consumer;
 
 /**
@@ -46,4 +51,32 @@ public class CosmosMigration {
             client.close();
         }
     }
+
+    // apply indexing policy built from index annotations of entity classes, with dryRun only changes are logged
+    public void migrateIndexingPolicy(boolean dryRun, Class<?>... entityClasses) {
+        migrate(database -> {
+            for (Class<?> entityClass : entityClasses) {
+                updateIndexingPolicy(database, entityClass, dryRun);
+            }
+        });
+    }
+
+    private void updateIndexingPolicy(CosmosDatabase database, Class<?> entityClass, boolean dryRun) {
+        IndexingPolicy policy = new CosmosClassValidator(entityClass).indexingPolicy();
+        String name = entityClass.getDeclaredAnnotation(Entity.class).name();
+        CosmosContainer container = database.getContainer(name);
+        CosmosContainerProperties properties = container.read().getProperties();
+        List<String> changes = CosmosClassValidator.indexingPolicyChanges(properties.getIndexingPolicy(), policy);
+        if (changes.isEmpty()) {
+            logger.info("indexing policy is up to date, container={}", name);
+            return;
+        }
+        for (String change : changes) {
+            logger.info("indexing policy change, container={}, change={}", name, change);
+        }
+        if (dryRun) return;
+        properties.setIndexingPolicy(policy);
+        container.replace(properties);
+        logger.info("indexing policy updated, container={}, changes={}, dropped paths will be removed from index, added paths are indexed in background", name, changes.size());
+    }
 }
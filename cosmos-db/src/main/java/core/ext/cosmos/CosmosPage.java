@@ -0,0 +1,15 @@
+package core.ext.cosmos;
+
+import java.util.List;
+
+/**
+ * @author Neal
+ */
+public class CosmosPage<V> {
+    public List<V> items;
+
+    /**
+     * null if there is no more page, items may be less than page size even more pages left
+     */
+    public String continuationToken;
+}
@@ -1,9 +1,12 @@
 package core.ext.cosmos;
 
+import com.azure.cosmos.models.CosmosQueryRequestOptions;
 import com.azure.cosmos.models.SqlQuerySpec;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * @author Neal
@@ -11,6 +14,13 @@ import java.util.Optional;
 public interface CosmosRepository<T> {
     Optional<T> get(String id);
 
+    Optional<T> get(String id, String partitionKey);
+
+    /**
+     * read by ids in one call, returns found entities in the order of ids, duplicated ids only return once, empty ids returns empty list
+     */
+    List<T> get(List<String> ids);
+
     void upsert(T entity);
 
     void insert(T entity);
@@ -19,9 +29,76 @@ public interface CosmosRepository<T> {
 
     <V> Optional<V> findOne(SqlQuerySpec query, Class<V> clazz);
 
+    /**
+     * options.setPartitionKey() to query within single partition
+     */
+    <V> Optional<V> findOne(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz);
+
     List<T> find(SqlQuerySpec query);
 
     <V> List<V> find(SqlQuerySpec query, Class<V> clazz);
 
+    <V> List<V> find(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz);
+
+    /**
+     * fetch one page, pass continuationToken of previous page to fetch next, null for first page
+     */
+    CosmosPage<T> find(SqlQuerySpec query, int pageSize, String continuationToken);
+
+    <V> CosmosPage<V> find(SqlQuerySpec query, Class<V> clazz, int pageSize, String continuationToken);
+
+    <V> CosmosPage<V> find(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz, int pageSize, String continuationToken);
+
+    void forEach(SqlQuerySpec query, Consumer<T> consumer);
+
+    <V> void forEach(SqlQuerySpec query, Class<V> clazz, Consumer<V> consumer);
+
+    <V> void forEach(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz, Consumer<V> consumer);
+
+    /**
+     * fetch page by page while consuming, stream must be closed to track the query, e.g. try (var stream = repository.stream(query, clazz)) {}
+     */
+    <V> Stream<V> stream(SqlQuerySpec query, Class<V> clazz);
+
+    <V> Stream<V> stream(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz);
+
+    /**
+     * query must return single number, e.g. SELECT VALUE COUNT(1) FROM c WHERE c.status = @status, only the count is transferred
+     */
+    long count(SqlQuerySpec query);
+
+    long count(SqlQuerySpec query, CosmosQueryRequestOptions options);
+
+    /**
+     * true if query returns any row, stop at first row, select value instead of document to keep it cheap, e.g. SELECT VALUE 1 FROM c WHERE c.email = @email
+     */
+    boolean exists(SqlQuerySpec query);
+
+    boolean exists(SqlQuerySpec query, CosmosQueryRequestOptions options);
+
+    /**
+     * single value of aggregate query, e.g. SELECT VALUE MAX(c.amount) FROM c, empty if no row returned
+     */
+    <V> Optional<V> scalar(SqlQuerySpec query, Class<V> valueClass);
+
+    <V> Optional<V> scalar(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> valueClass);
+
     void delete(String id);
+
+    void delete(String id, String partitionKey);
+
+    /**
+     * results are in the same order as input, failed item doesn't throw exception, check success and statusCode, empty input returns empty results
+     */
+    List<CosmosBulkResult> bulkInsert(List<T> entities);
+
+    List<CosmosBulkResult> bulkUpsert(List<T> entities);
+
+    List<CosmosBulkResult> bulkDelete(List<String> ids);
+
+    /**
+     * execute up to 100 operations within one partition key atomically in one request, failed batch doesn't throw exception, check success,
+     * empty operations returns successful result with empty results
+     */
+    CosmosBatchResult batch(String partitionKey, List<CosmosBatchOperation<T>> operations);
 }
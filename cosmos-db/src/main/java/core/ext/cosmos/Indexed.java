@@ -0,0 +1,17 @@
+package core.ext.cosmos;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * include field in index, if any field of entity has @Indexed, all other paths are excluded, must not be mixed with @NotIndexed
+ *
+ * @author Neal
+ */
+@Target(FIELD)
+@Retention(RUNTIME)
+public @interface Indexed {
+}
@@ -0,0 +1,17 @@
+package core.ext.cosmos;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * exclude field from index, all other paths are indexed, e.g. large text or nested object never queried
+ *
+ * @author Neal
+ */
+@Target(FIELD)
+@Retention(RUNTIME)
+public @interface NotIndexed {
+}
@@ -0,0 +1,17 @@
+package core.ext.cosmos;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * partition key field of container, must be String, if not present id is used as partition key
+ *
+ * @author Neal
+ */
+@Target(FIELD)
+@Retention(RUNTIME)
+public @interface PartitionKey {
+}
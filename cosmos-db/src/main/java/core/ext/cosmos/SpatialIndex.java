@@ -0,0 +1,20 @@
+package core.ext.cosmos;
+
+import com.azure.cosmos.models.SpatialType;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * field must be GeoJSON object, e.g. {"type": "Point", "coordinates": [lng, lat]}
+ *
+ * @author Neal
+ */
+@Target(FIELD)
+@Retention(RUNTIME)
+public @interface SpatialIndex {
+    SpatialType[] types() default SpatialType.POINT;
+}
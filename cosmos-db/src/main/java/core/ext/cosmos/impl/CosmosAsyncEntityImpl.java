@@ -0,0 +1,309 @@
+package core.ext.cosmos.impl;
+
+import com.azure.cosmos.CosmosAsyncContainer;
+import com.azure.cosmos.CosmosDiagnostics;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.implementation.HttpConstants;
+import com.azure.cosmos.models.CosmosItemRequestOptions;
+import com.azure.cosmos.models.CosmosQueryRequestOptions;
+import com.azure.cosmos.models.FeedResponse;
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.cosmos.models.SqlQuerySpec;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import core.ext.cosmos.CosmosAsyncRepository;
+import core.framework.internal.log.ActionLog;
+import core.framework.internal.log.LogManager;
+import core.framework.util.StopWatch;
+import core.framework.util.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * @author Neal
+ */
+public class CosmosAsyncEntityImpl<T> implements CosmosAsyncRepository<T> {
+    private final Logger logger = LoggerFactory.getLogger(CosmosAsyncEntityImpl.class);
+    private final CosmosImpl cosmos;
+    private final CosmosEntityMetadata<T> metadata;
+    private final String entityName;
+
+    CosmosAsyncEntityImpl(CosmosImpl cosmos, CosmosEntityMetadata<T> metadata) {
+        this.cosmos = cosmos;
+        this.metadata = metadata;
+        this.entityName = metadata.entityName;
+    }
+
+    @Override
+    public CompletableFuture<Optional<T>> get(String id) {
+        metadata.checkIdAsPartitionKey("get(id)");
+        return get(id, id);
+    }
+
+    @Override
+    public CompletableFuture<Optional<T>> get(String id, String partitionKey) {
+        if (Strings.isBlank(id)) throw new Error("id must not be null");
+        if (Strings.isBlank(partitionKey)) throw new Error("partitionKey must not be null");
+        String key = metadata.cacheKey(id, partitionKey);
+        if (metadata.writeBehind != null) {
+            ObjectNode buffered = metadata.writeBehind.get(key);
+            if (buffered != null) return CompletableFuture.completedFuture(Optional.of(metadata.codec.decode(buffered)));
+        }
+        CosmosEntityCache<T> cache = metadata.cache;
+        if (cache == null) return read(id, partitionKey);
+        CosmosEntityCache.Item<T> item = cache.get(key);
+        if (item != null) return CompletableFuture.completedFuture(Optional.ofNullable(item.value));
+        long generation = cache.generation();
+        return read(id, partitionKey).thenApply(result -> {
+            cache.put(key, result.orElse(null), generation);
+            return result;
+        });
+    }
+
+    private CompletableFuture<Optional<T>> read(String id, String partitionKey) {
+        var trace = new Trace("get", cosmos);
+        Mono<Optional<T>> result = cosmos.hedgedRead(entityName, container().readItem(id, new PartitionKey(partitionKey), ObjectNode.class),
+            container -> container.readItem(id, new PartitionKey(partitionKey), ObjectNode.class))
+            .map(response -> {
+                trace.requestCharge = response.getRequestCharge();
+                trace.diagnostics(response.getDiagnostics());
+                ObjectNode item = response.getItem();
+                if (item == null) return Optional.<T>empty();
+                trace.readDocs = 1;
+                return Optional.of(metadata.codec.decode(item));
+            })
+            .onErrorResume(CosmosException.class, e -> {
+                trace.failed(e);
+                if (e.getStatusCode() == HttpConstants.StatusCodes.NOTFOUND) return Mono.just(Optional.<T>empty());
+                return Mono.error(cosmos.throttled(entityName, e));
+            });
+        return execute(trace, result);
+    }
+
+    @Override
+    public CompletableFuture<Void> upsert(T entity) {
+        metadata.validator.validate(entity, false);
+        if (metadata.writeBehind != null) {
+            metadata.writeBehind.put(metadata.cacheKey(entity), metadata.id(entity), metadata.codec.encodeNode(entity), metadata.partitionKey(entity));
+            return CompletableFuture.completedFuture(null);
+        }
+        var trace = new Trace("upsert", cosmos);
+        trace.writeDocs = 1;
+        String cacheKey = metadata.cacheKey(entity);
+        Mono<Void> result = container().upsertItem(metadata.codec.encode(entity), metadata.partitionKey(entity), new CosmosItemRequestOptions())
+            .doOnNext(response -> {
+                trace.requestCharge = response.getRequestCharge();
+                trace.diagnostics(response.getDiagnostics());
+            })
+            .onErrorMap(CosmosException.class, e -> cosmos.throttled(entityName, trace.failed(e)))
+            .doOnTerminate(() -> metadata.invalidate(cacheKey))
+            .then();
+        return execute(trace, result);
+    }
+
+    @Override
+    public CompletableFuture<Void> insert(T entity) {
+        metadata.validator.validate(entity, false);
+        var trace = new Trace("insert", cosmos);
+        trace.writeDocs = 1;
+        String cacheKey = metadata.cacheKey(entity);
+        if (metadata.writeBehind != null) metadata.writeBehind.remove(cacheKey);
+        Mono<Void> result = container().createItem(metadata.codec.encode(entity), metadata.partitionKey(entity), new CosmosItemRequestOptions())
+            .doOnNext(response -> {
+                trace.requestCharge = response.getRequestCharge();
+                trace.diagnostics(response.getDiagnostics());
+            })
+            .onErrorMap(CosmosException.class, e -> cosmos.throttled(entityName, trace.failed(e)))
+            .doOnTerminate(() -> metadata.invalidate(cacheKey))
+            .then();
+        return execute(trace, result);
+    }
+
+    @Override
+    public <V> CompletableFuture<Optional<V>> findOne(SqlQuerySpec query, Class<V> clazz) {
+        return findOne(query, new CosmosQueryRequestOptions(), clazz);
+    }
+
+    @Override
+    public <V> CompletableFuture<Optional<V>> findOne(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz) {
+        boolean sampled = cosmos.sampleDiagnostics();
+        var trace = new Trace("findOne", sampled);
+        Mono<Optional<V>> result = query(query, cosmos.queryOptions(options, sampled), clazz, trace, cosmos.hedging != null)
+            .take(2)
+            .collectList()
+            .map(results -> {
+                trace.readDocs = results.size();
+                if (results.size() > 1) throw new Error("more than one row returned");
+                return results.isEmpty() ? Optional.<V>empty() : Optional.of(results.get(0));
+            });
+        return execute(trace, result);
+    }
+
+    @Override
+    public <V> CompletableFuture<List<V>> find(SqlQuerySpec query, Class<V> clazz) {
+        return find(query, new CosmosQueryRequestOptions(), clazz);
+    }
+
+    @Override
+    public <V> CompletableFuture<List<V>> find(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz) {
+        boolean sampled = cosmos.sampleDiagnostics();
+        var trace = new Trace("find", sampled);
+        Mono<List<V>> result = query(query, cosmos.queryOptions(options, sampled), clazz, trace, false)
+            .collectList()
+            .doOnNext(results -> {
+                trace.readDocs = results.size();
+                cosmos.checkTooManyRowsReturned(results.size());
+            });
+        return execute(trace, result);
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(String id) {
+        metadata.checkIdAsPartitionKey("delete(id)");
+        return delete(id, id);
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(String id, String partitionKey) {
+        if (Strings.isBlank(id)) throw new Error("id must not be null");
+        if (Strings.isBlank(partitionKey)) throw new Error("partitionKey must not be null");
+        var trace = new Trace("delete", cosmos);
+        trace.writeDocs = 1;
+        String cacheKey = metadata.cacheKey(id, partitionKey);
+        if (metadata.writeBehind != null) metadata.writeBehind.remove(cacheKey);
+        Mono<Void> result = container().deleteItem(id, new PartitionKey(partitionKey), new CosmosItemRequestOptions())
+            .doOnNext(response -> {
+                trace.requestCharge = response.getRequestCharge();
+                trace.diagnostics(response.getDiagnostics());
+            })
+            .onErrorMap(CosmosException.class, e -> cosmos.throttled(entityName, trace.failed(e)))
+            .doOnTerminate(() -> metadata.invalidate(cacheKey))
+            .then();
+        return execute(trace, result);
+    }
+
+    private <V> Flux<V> query(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz, Trace trace, boolean hedged) {
+        trace.query = query;
+        return query(cosmos.project(query, metadata.entityClass, clazz), options, metadata.decoder(clazz), trace, hedged);
+    }
+
+    private <R, V> Flux<V> query(SqlQuerySpec query, CosmosQueryRequestOptions options, CosmosEntityMetadata.Decoder<R, V> decoder, Trace trace, boolean hedged) {
+        Flux<FeedResponse<R>> pages = hedged
+            ? cosmos.hedgedRead(entityName, container().queryItems(query, options, decoder.itemClass).byPage().collectList(),
+                container -> container.queryItems(query, options, decoder.itemClass).byPage().collectList()).flatMapIterable(results -> results)
+            : container().queryItems(query, options, decoder.itemClass).byPage();
+        return pages
+            .doOnNext(page -> {
+                trace.requestCharge += page.getRequestCharge();
+                trace.page(page);
+            })
+            .flatMapIterable(FeedResponse::getResults)
+            .map(decoder.decode)
+            .onErrorMap(CosmosException.class, e -> cosmos.throttled(entityName, trace.failed(e)));
+    }
+
+    // throttled without blocking caller thread, operation starts after acquired
+    private <R> CompletableFuture<R> execute(Trace trace, Mono<R> result) {
+        cosmos.trackAsyncOperations();
+        var future = new CosmosFuture<R>(cosmos);
+        cosmos.acquireAsync(entityName).then(result).subscribe(value -> {
+            completed(trace);
+            future.complete(value);
+        }, e -> {
+            completed(trace);
+            future.completeExceptionally(e);
+        }, () -> {
+            if (future.isDone()) return;    // value is already completed
+            completed(trace);
+            future.complete(null);
+        });
+        return future;
+    }
+
+    // on sdk io thread, before future completes, so operation is queued before caller thread joins future
+    private void completed(Trace trace) {
+        trace.elapsed = trace.watch.elapsed();
+        cosmos.record(entityName, trace.operation, trace.elapsed, trace.requestCharge);
+        cosmos.consume(entityName, trace.requestCharge, false);
+        logger.debug("async {}, entity={}, sql={}, readDocs={}, writeDocs={}, requestCharge={}, elapsed={}",
+            trace.operation,
+            entityName,
+            trace.query == null ? null : trace.query.getQueryText(),
+            trace.readDocs,
+            trace.writeDocs,
+            trace.requestCharge,
+            trace.elapsed);
+        String operation = trace.operation;
+        long elapsed = trace.elapsed;
+        int readDocs = trace.readDocs;
+        int writeDocs = trace.writeDocs;
+        double requestCharge = trace.requestCharge;
+        Supplier<String> diagnostics = trace.diagnostics();
+        Consumer<ActionLog> track = actionLog -> cosmos.trackAction(actionLog, entityName, operation, elapsed, readDocs, writeDocs, requestCharge, diagnostics);
+        if (trace.actionLog == null) track.accept(null);     // not within action, e.g. background thread
+        else cosmos.trackAsync(trace.actionLog, track);
+    }
+
+    private CosmosAsyncContainer container() {
+        return cosmos.asyncContainer(entityName);
+    }
+
+    // captured on caller thread, updated on sdk io threads, tracked into action log on caller thread
+    private static final class Trace {
+        final String operation;
+        final ActionLog actionLog = LogManager.CURRENT_ACTION_LOG.get();
+        final StopWatch watch = new StopWatch();
+        final boolean sampled;
+        CosmosDiagnostics diagnostics;     // only kept if sampled, first page of query
+        SqlQuerySpec query;
+        String indexMetrics;
+        int pages;
+        int readDocs;
+        int writeDocs;
+        double requestCharge;
+        long elapsed;
+
+        Trace(String operation, boolean sampled) {
+            this.operation = operation;
+            this.sampled = sampled;
+        }
+
+        Trace(String operation, CosmosImpl cosmos) {
+            this(operation, cosmos.sampleDiagnostics());
+        }
+
+        void diagnostics(CosmosDiagnostics diagnostics) {
+            if (sampled && this.diagnostics == null) this.diagnostics = diagnostics;
+        }
+
+        CosmosException failed(CosmosException e) {
+            diagnostics(e.getDiagnostics());
+            return e;
+        }
+
+        void page(FeedResponse<?> page) {
+            pages++;
+            if (sampled && diagnostics == null) {
+                indexMetrics = page.getIndexMetrics();
+                diagnostics = page.getCosmosDiagnostics();
+            }
+        }
+
+        // must not capture trace, which references action log
+        Supplier<String> diagnostics() {
+            if (diagnostics == null) return null;
+            CosmosDiagnostics diagnostics = this.diagnostics;
+            if (query == null) return diagnostics::toString;
+            int pages = this.pages;
+            String indexMetrics = this.indexMetrics;
+            return () -> CosmosQueryIterator.diagnostics(pages, indexMetrics, diagnostics);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package core.ext.cosmos.impl;
+
+import com.azure.cosmos.ChangeFeedProcessor;
+import com.azure.cosmos.ChangeFeedProcessorBuilder;
+import com.azure.cosmos.CosmosAsyncContainer;
+import com.azure.cosmos.CosmosAsyncDatabase;
+import com.azure.cosmos.models.ChangeFeedProcessorOptions;
+import com.fasterxml.jackson.databind.JsonNode;
+import core.ext.cosmos.ChangeFeedHandler;
+import core.ext.cosmos.Entity;
+import core.framework.internal.log.ActionLog;
+import core.framework.internal.log.LogManager;
+import core.framework.internal.stat.Metrics;
+import core.framework.internal.stat.Stats;
+import core.framework.util.Network;
+import core.framework.util.StopWatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Neal
+ */
+public class CosmosChangeFeed implements Metrics {
+    private final Logger logger = LoggerFactory.getLogger(CosmosChangeFeed.class);
+    private final CosmosImpl cosmos;
+    private final LogManager logManager;
+    private final List<Subscription<?>> subscriptions = new ArrayList<>();
+    public String leaseContainer = "leases";
+    public int maxItemCount = 100;
+    public Duration pollDelay = Duration.ofSeconds(1);
+
+    public CosmosChangeFeed(CosmosImpl cosmos, LogManager logManager) {
+        this.cosmos = cosmos;
+        this.logManager = logManager;
+    }
+
+    public <T> void add(Class<T> entityClass, ChangeFeedHandler<T> handler) {
+        String entityName = entityClass.getAnnotation(Entity.class).name();
+        for (Subscription<?> subscription : subscriptions) {
+            if (subscription.entityName.equals(entityName))
+                throw new Error("found duplicate change feed handler, entity=" + entityName);
+        }
+        var validator = new CosmosClassValidator(entityClass);
+        validator.validateEntityClass();
+        subscriptions.add(new Subscription<>(entityName, validator.codec(entityClass), handler));
+    }
+
+    public void start() {
+        var watch = new StopWatch();
+        CosmosAsyncDatabase database = cosmos.getAsyncDatabase();
+        CosmosAsyncContainer leases = database.getContainer(leaseContainer);
+        String hostName = Network.LOCAL_HOST_NAME;
+        for (Subscription<?> subscription : subscriptions) {
+            var options = new ChangeFeedProcessorOptions();
+            options.setLeasePrefix(subscription.entityName + "_");
+            options.setMaxItemCount(maxItemCount);
+            options.setFeedPollDelay(pollDelay);
+            subscription.processor = new ChangeFeedProcessorBuilder()
+                .hostName(hostName)
+                .feedContainer(cosmos.asyncContainer(subscription.entityName))
+                .leaseContainer(leases)
+                .options(options)
+                .handleChanges(subscription::handle)
+                .buildChangeFeedProcessor();
+            subscription.processor.start().block();
+        }
+        logger.info("change feed started, leaseContainer={}, entities={}, elapsed={}", leaseContainer, subscriptions.size(), watch.elapsed());
+    }
+
+    public void stop() {
+        for (Subscription<?> subscription : subscriptions) {
+            if (subscription.processor != null) {
+                logger.info("stop change feed, entity={}", subscription.entityName);
+                subscription.processor.stop().block();
+            }
+        }
+    }
+
+    @Override
+    public void collect(Stats stats) {
+        for (Subscription<?> subscription : subscriptions) {
+            if (subscription.processor == null) continue;
+            String prefix = "cosmos_change_feed_" + subscription.entityName;
+            stats.put(prefix + "_processed_docs", subscription.processedDocs.getAndSet(0));
+            long lag = subscription.lag;
+            if (lag >= 0) stats.put(prefix + "_lag", lag);
+            subscription.refreshLag();
+        }
+    }
+
+    private final class Subscription<T> {
+        final String entityName;
+        final CosmosEntityCodec<T> codec;
+        final ChangeFeedHandler<T> handler;
+        final AtomicLong processedDocs = new AtomicLong();
+        final AtomicBoolean refreshingLag = new AtomicBoolean();
+        volatile long lag = -1;     // refreshed asynchronously, collected on next round
+        ChangeFeedProcessor processor;
+
+        Subscription(String entityName, CosmosEntityCodec<T> codec, ChangeFeedHandler<T> handler) {
+            this.entityName = entityName;
+            this.codec = codec;
+            this.handler = handler;
+        }
+
+        // estimated lag queries every lease partition, must not block metrics collector
+        void refreshLag() {
+            if (!refreshingLag.compareAndSet(false, true)) return;
+            processor.getEstimatedLag()
+                .timeout(Duration.ofSeconds(30))
+                .doFinally(signal -> refreshingLag.set(false))
+                .subscribe(lags -> lag = lags.values().stream().mapToLong(Integer::longValue).sum(),
+                    e -> logger.warn("failed to get change feed lag, entity={}", entityName, e));
+        }
+
+        void handle(List<JsonNode> changes) {
+            ActionLog actionLog = logManager.begin("=== cosmos change feed handling begin ===", null);
+            try {
+                actionLog.action("cosmos:" + entityName);
+                actionLog.context("changed_docs", changes.size());
+                List<T> entities = new ArrayList<>(changes.size());
+                for (JsonNode change : changes) {
+                    entities.add(codec.decode(change));
+                }
+                handler.handle(entities);
+                processedDocs.addAndGet(changes.size());
+            } catch (Throwable e) {
+                logManager.logError(e);
+                throw new Error("failed to handle change feed, entity=" + entityName, e);
+            } finally {
+                logManager.end("=== cosmos change feed handling end ===");
+            }
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package core.ext.cosmos.impl;
 
+import com.azure.cosmos.models.IndexingPolicy;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import core.ext.cosmos.Entity;
 import core.ext.cosmos.Id;
+import core.ext.cosmos.PartitionKey;
 import core.framework.internal.reflect.Classes;
 import core.framework.internal.reflect.Fields;
 import core.framework.internal.validate.ClassValidator;
@@ -12,6 +14,7 @@ import core.framework.util.Sets;
 
 import java.lang.reflect.Field;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -24,7 +27,10 @@ import static core.framework.util.Strings.format;
 public class CosmosClassValidator implements ClassVisitor {
     private final ClassValidator validator;
     private final Map<String, Set<String>> fields = Maps.newHashMap();
-    private Field id;
+    final Map<Class<?>, List<Field>> classFields = Maps.newHashMap();   // used to build CosmosEntityCodec, core-ng entity class has no super class
+    Field id;
+    Field partitionKey;
+    private IndexingPolicy indexingPolicy;
 
     public CosmosClassValidator(Class<?> entityClass) {
         validator = new ClassValidator(entityClass);
@@ -39,6 +45,22 @@ public class CosmosClassValidator implements ClassVisitor {
         if (id == null) {
             throw new Error("cosmos entity class must have @Id field, class=" + validator.instanceClass.getCanonicalName());
         }
+        indexingPolicy = new CosmosIndexingPolicyBuilder(classFields).build(validator.instanceClass);
+    }
+
+    // validate entity class and build indexing policy from index annotations, used by migration
+    public IndexingPolicy indexingPolicy() {
+        if (indexingPolicy == null) validateEntityClass();
+        return indexingPolicy;
+    }
+
+    // changes to turn current into target policy, e.g. "+included /status/?", "-excluded /*"
+    public static List<String> indexingPolicyChanges(IndexingPolicy current, IndexingPolicy target) {
+        return CosmosIndexingPolicyBuilder.diff(current, target);
+    }
+
+    <T> CosmosEntityCodec<T> codec(Class<T> entityClass) {
+        return new CosmosEntityCodec<>(entityClass, classFields);
     }
 
     @Override
@@ -49,6 +71,11 @@ public class CosmosClassValidator implements ClassVisitor {
 
     @Override
     public void visitField(Field field, String parentPath) {
+        List<Field> declaredFields = classFields.computeIfAbsent(field.getDeclaringClass(), key -> new ArrayList<>());
+        if (!declaredFields.contains(field)) declaredFields.add(field);     // same child class can be used by multiple fields
+        if (field.isAnnotationPresent(PartitionKey.class)) {
+            validatePartitionKey(field, parentPath == null);
+        }
         if (field.isAnnotationPresent(Id.class)) {
             validateId(field, parentPath == null);
         } else {
@@ -81,6 +108,16 @@ public class CosmosClassValidator implements ClassVisitor {
         }
     }
 
+    private void validatePartitionKey(Field field, boolean topLevel) {
+        if (!topLevel)
+            throw new Error(format("cosmos nested entity class must not have @PartitionKey field, field={}", Fields.path(field)));
+        if (partitionKey != null)
+            throw new Error(format("cosmos entity class must have only one @PartitionKey field, previous={}, current={}", Fields.path(partitionKey), Fields.path(field)));
+        if (!String.class.equals(field.getType()))
+            throw new Error(format("@PartitionKey field type must be String, field={}, class={}", Fields.path(field), field.getType().getCanonicalName()));
+        partitionKey = field;
+    }
+
     private void validateId(Field field, boolean topLevel) {
         if (topLevel) {
             if (id != null)
@@ -0,0 +1,92 @@
+package core.ext.cosmos.impl;
+
+import core.framework.internal.stat.Metrics;
+import core.framework.internal.stat.Stats;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * in-process LRU cache in front of point read, only invalidated by writes of current instance,
+ * cached entity is shared between callers, must not be modified
+ *
+ * @author Neal
+ */
+public final class CosmosEntityCache<T> implements Metrics {
+    private final String entityName;
+    private final long expirationInNanos;
+    private final int maxSize;
+    private final Map<String, Item<T>> items;
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public CosmosEntityCache(String entityName, Duration expiration, int maxSize) {
+        if (expiration.isNegative() || expiration.isZero()) throw new Error("cache expiration must be greater than 0, expiration=" + expiration);
+        if (maxSize <= 0) throw new Error("cache max size must be greater than 0, maxSize=" + maxSize);
+        this.entityName = entityName;
+        this.expirationInNanos = expiration.toNanos();
+        this.maxSize = maxSize;
+        items = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Item<T>> eldest) {
+                boolean evict = size() > CosmosEntityCache.this.maxSize;
+                if (evict) evictions++;
+                return evict;
+            }
+        };
+    }
+
+    // return null if not cached or expired, item.value is null if entity not found
+    synchronized Item<T> get(String id) {
+        Item<T> item = items.get(id);
+        if (item != null && item.expirationTime - System.nanoTime() > 0) {
+            hits++;
+            return item;
+        }
+        if (item != null) items.remove(id);
+        misses++;
+        return null;
+    }
+
+    // take generation before loading, to skip put if any write happened during loading
+    synchronized long generation() {
+        return generation;
+    }
+
+    synchronized void put(String id, T value, long generation) {
+        if (this.generation != generation) return;
+        items.put(id, new Item<>(value, System.nanoTime() + expirationInNanos));
+    }
+
+    synchronized void invalidate(String id) {
+        generation++;
+        items.remove(id);
+    }
+
+    @Override
+    public synchronized void collect(Stats stats) {
+        String prefix = "cosmos_cache_" + entityName;
+        stats.put(prefix + "_size", items.size());
+        stats.put(prefix + "_hits", hits);
+        stats.put(prefix + "_misses", misses);
+        stats.put(prefix + "_evictions", evictions);
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    static final class Item<T> {
+        final T value;
+        final long expirationTime;
+
+        Item(T value, long expirationTime) {
+            this.value = value;
+            this.expirationTime = expirationTime;
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package core.ext.cosmos.impl;
+
+import com.azure.cosmos.implementation.Utils;
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import core.ext.cosmos.Id;
+import core.framework.internal.reflect.Classes;
+import core.framework.internal.reflect.GenericTypes;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Type;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static core.framework.util.Strings.format;
+
+/**
+ * specialized encoder/decoder per entity class, bound with method handles from fields collected by CosmosClassValidator,
+ * property names and enum values are resolved and pre-encoded once at registration instead of reflective binding per document,
+ * entity is streamed to request body by JsonGenerator, decoded from json tree as sdk always parses response into tree
+ *
+ * @author Neal
+ */
+final class CosmosEntityCodec<T> {
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final ObjectCodec root;
+
+    CosmosEntityCodec(Class<T> entityClass, Map<Class<?>, List<Field>> classFields) {
+        Map<Class<?>, ObjectCodec> codecs = new HashMap<>();
+        root = objectCodec(entityClass, classFields, codecs);
+    }
+
+    // written to generator when sdk object mapper serializes request, no intermediate json tree
+    JsonSerializable encode(T entity) {
+        return new EncodedEntity(root, entity);
+    }
+
+    // json tree snapshot, e.g. buffered by write behind
+    ObjectNode encodeNode(T entity) {
+        return Utils.getSimpleObjectMapper().valueToTree(encode(entity));
+    }
+
+    @SuppressWarnings("unchecked")
+    T decode(JsonNode node) {
+        return (T) root.decode(node);
+    }
+
+    private ObjectCodec objectCodec(Class<?> objectClass, Map<Class<?>, List<Field>> classFields, Map<Class<?>, ObjectCodec> codecs) {
+        ObjectCodec codec = codecs.get(objectClass);
+        if (codec != null) return codec;
+        codec = new ObjectCodec(objectClass);
+        codecs.put(objectClass, codec);     // register before fields to support recursive child class
+        List<Field> fields = classFields.getOrDefault(objectClass, List.of());
+        List<PropertyCodec> properties = new ArrayList<>(fields.size());
+        for (Field field : fields) {
+            properties.add(new PropertyCodec(propertyName(field), field, valueCodec(field.getGenericType(), field, classFields, codecs)));
+        }
+        codec.properties(properties);
+        return codec;
+    }
+
+    private ValueCodec valueCodec(Type type, Field field, Map<Class<?>, List<Field>> classFields, Map<Class<?>, ObjectCodec> codecs) {
+        if (GenericTypes.isList(type)) {
+            return new ListCodec(valueCodec(GenericTypes.listValueClass(type), field, classFields, codecs));
+        }
+        if (GenericTypes.isMap(type)) {
+            Class<?> keyClass = GenericTypes.mapKeyClass(type);
+            return new MapCodec(keyClass.isEnum() ? new EnumCodec(keyClass) : null, valueCodec(GenericTypes.mapValueClass(type), field, classFields, codecs));
+        }
+        Class<?> valueClass = GenericTypes.rawClass(type);
+        if (String.class.equals(valueClass)) return new StringCodec();
+        if (Boolean.class.equals(valueClass)) return new BooleanCodec();
+        if (Integer.class.equals(valueClass)) return new IntegerCodec();
+        if (Long.class.equals(valueClass)) return new LongCodec();
+        if (Double.class.equals(valueClass)) return new DoubleCodec();
+        if (ZonedDateTime.class.equals(valueClass)) return new ZonedDateTimeCodec(field.getDeclaredAnnotation(JsonFormat.class));
+        if (valueClass.isEnum()) return new EnumCodec(valueClass);
+        return objectCodec(valueClass, classFields, codecs);
+    }
+
+    private String propertyName(Field field) {
+        JsonProperty property = field.getDeclaredAnnotation(JsonProperty.class);
+        if (property != null) return property.value();
+        if (field.isAnnotationPresent(Id.class)) return "id";
+        throw new Error(format("cosmos entity field must have @JsonProperty, field={}", field));
+    }
+
+    interface ValueCodec {
+        void encode(JsonGenerator generator, Object value) throws IOException;
+
+        Object decode(JsonNode node);
+    }
+
+    static final class ObjectCodec implements ValueCodec {
+        private final MethodHandle constructor;
+        private PropertyCodec[] properties;
+        private Map<String, PropertyCodec> propertiesByName;
+
+        ObjectCodec(Class<?> objectClass) {
+            try {
+                constructor = MethodHandles.lookup().unreflectConstructor(objectClass.getDeclaredConstructor()).asType(MethodType.methodType(Object.class));
+            } catch (ReflectiveOperationException e) {
+                throw new Error("failed to bind constructor, class=" + objectClass.getCanonicalName(), e);
+            }
+        }
+
+        void properties(List<PropertyCodec> properties) {
+            this.properties = properties.toArray(new PropertyCodec[0]);
+            propertiesByName = new HashMap<>(properties.size() * 2);
+            for (PropertyCodec property : properties) {
+                propertiesByName.put(property.name.getValue(), property);
+            }
+        }
+
+        @Override
+        public void encode(JsonGenerator generator, Object value) throws IOException {
+            generator.writeStartObject();
+            for (PropertyCodec property : properties) {
+                Object fieldValue = property.get(value);
+                if (fieldValue == null) continue;
+                generator.writeFieldName(property.name);
+                property.value.encode(generator, fieldValue);
+            }
+            generator.writeEndObject();
+        }
+
+        @Override
+        public Object decode(JsonNode node) {
+            if (!node.isObject()) throw new Error("json node must be object, node=" + node.getNodeType());
+            Object instance = newInstance();
+            Iterator<Map.Entry<String, JsonNode>> iterator = node.fields();
+            while (iterator.hasNext()) {
+                Map.Entry<String, JsonNode> entry = iterator.next();
+                PropertyCodec property = propertiesByName.get(entry.getKey());
+                if (property == null) continue;     // e.g. system properties _rid, _etag, _ts
+                JsonNode value = entry.getValue();
+                property.set(instance, value.isNull() ? null : property.value.decode(value));
+            }
+            return instance;
+        }
+
+        private Object newInstance() {
+            try {
+                return (Object) constructor.invokeExact();
+            } catch (Throwable e) {
+                throw new Error(e);
+            }
+        }
+    }
+
+    static final class PropertyCodec {
+        final SerializedString name;
+        final ValueCodec value;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        PropertyCodec(String name, Field field, ValueCodec value) {
+            this.name = new SerializedString(name);
+            this.value = value;
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+                setter = lookup.unreflectSetter(field).asType(SETTER_TYPE);
+            } catch (IllegalAccessException e) {
+                throw new Error("failed to bind field, field=" + field, e);
+            }
+        }
+
+        Object get(Object instance) {
+            try {
+                return (Object) getter.invokeExact(instance);
+            } catch (Throwable e) {
+                throw new Error(e);
+            }
+        }
+
+        void set(Object instance, Object fieldValue) {
+            try {
+                setter.invokeExact(instance, fieldValue);
+            } catch (Throwable e) {
+                throw new Error(e);
+            }
+        }
+    }
+
+    static final class ListCodec implements ValueCodec {
+        private final ValueCodec element;
+
+        ListCodec(ValueCodec element) {
+            this.element = element;
+        }
+
+        @Override
+        public void encode(JsonGenerator generator, Object value) throws IOException {
+            List<?> list = (List<?>) value;
+            generator.writeStartArray();
+            for (Object item : list) {
+                if (item == null) generator.writeNull();
+                else element.encode(generator, item);
+            }
+            generator.writeEndArray();
+        }
+
+        @Override
+        public Object decode(JsonNode node) {
+            List<Object> list = new ArrayList<>(node.size());
+            for (JsonNode item : node) {
+                list.add(item.isNull() ? null : element.decode(item));
+            }
+            return list;
+        }
+    }
+
+    static final class MapCodec implements ValueCodec {
+        private final EnumCodec enumKey;     // null if key is String
+        private final ValueCodec value;
+
+        MapCodec(EnumCodec enumKey, ValueCodec value) {
+            this.enumKey = enumKey;
+            this.value = value;
+        }
+
+        @Override
+        public void encode(JsonGenerator generator, Object value) throws IOException {
+            Map<?, ?> map = (Map<?, ?>) value;
+            generator.writeStartObject();
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (enumKey == null) generator.writeFieldName((String) entry.getKey());
+                else generator.writeFieldName(enumKey.name(entry.getKey()));
+                Object entryValue = entry.getValue();
+                if (entryValue == null) generator.writeNull();
+                else this.value.encode(generator, entryValue);
+            }
+            generator.writeEndObject();
+        }
+
+        @Override
+        public Object decode(JsonNode node) {
+            Map<Object, Object> map = new LinkedHashMap<>(node.size() * 2);
+            Iterator<Map.Entry<String, JsonNode>> iterator = node.fields();
+            while (iterator.hasNext()) {
+                Map.Entry<String, JsonNode> entry = iterator.next();
+                Object key = enumKey == null ? entry.getKey() : enumKey.value(entry.getKey());
+                JsonNode entryValue = entry.getValue();
+                map.put(key, entryValue.isNull() ? null : value.decode(entryValue));
+            }
+            return map;
+        }
+    }
+
+    static final class EnumCodec implements ValueCodec {
+        private final Map<Object, SerializedString> names = new HashMap<>();
+        private final Map<String, Object> values = new HashMap<>();
+
+        EnumCodec(Class<?> enumClass) {
+            for (Field field : Classes.enumConstantFields(enumClass)) {
+                String name = field.getDeclaredAnnotation(JsonProperty.class).value();
+                try {
+                    Object constant = field.get(null);
+                    names.put(constant, new SerializedString(name));
+                    values.put(name, constant);
+                } catch (IllegalAccessException e) {
+                    throw new Error(e);
+                }
+            }
+        }
+
+        SerializedString name(Object value) {
+            return names.get(value);
+        }
+
+        Object value(String name) {
+            Object value = values.get(name);
+            if (value == null) throw new Error("unknown enum value, value=" + name);
+            return value;
+        }
+
+        @Override
+        public void encode(JsonGenerator generator, Object value) throws IOException {
+            generator.writeString(names.get(value));
+        }
+
+        @Override
+        public Object decode(JsonNode node) {
+            return value(node.asText());
+        }
+    }
+
+    static final class StringCodec implements ValueCodec {
+        @Override
+        public void encode(JsonGenerator generator, Object value) throws IOException {
+            generator.writeString((String) value);
+        }
+
+        @Override
+        public Object decode(JsonNode node) {
+            return node.asText();
+        }
+    }
+
+    static final class BooleanCodec implements ValueCodec {
+        @Override
+        public void encode(JsonGenerator generator, Object value) throws IOException {
+            generator.writeBoolean((Boolean) value);
+        }
+
+        @Override
+        public Object decode(JsonNode node) {
+            return node.asBoolean();
+        }
+    }
+
+    static final class IntegerCodec implements ValueCodec {
+        @Override
+        public void encode(JsonGenerator generator, Object value) throws IOException {
+            generator.writeNumber((Integer) value);
+        }
+
+        @Override
+        public Object decode(JsonNode node) {
+            return node.asInt();
+        }
+    }
+
+    static final class LongCodec implements ValueCodec {
+        @Override
+        public void encode(JsonGenerator generator, Object value) throws IOException {
+            generator.writeNumber((Long) value);
+        }
+
+        @Override
+        public Object decode(JsonNode node) {
+            return node.asLong();
+        }
+    }
+
+    static final class DoubleCodec implements ValueCodec {
+        @Override
+        public void encode(JsonGenerator generator, Object value) throws IOException {
+            generator.writeNumber((Double) value);
+        }
+
+        @Override
+        public Object decode(JsonNode node) {
+            return node.asDouble();
+        }
+    }
+
+    // same as jackson ZonedDateTimeSerializer/InstantDeserializer registered by ZonedDateTimeModule, decoded value is adjusted to UTC
+    static final class ZonedDateTimeCodec implements ValueCodec {
+        private final DateTimeFormatter encoder;
+        private final DateTimeFormatter decoder;
+
+        ZonedDateTimeCodec(JsonFormat format) {
+            if (format != null && !format.pattern().isEmpty()) {
+                encoder = DateTimeFormatter.ofPattern(format.pattern());
+                decoder = encoder;
+            } else {
+                encoder = DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+                decoder = DateTimeFormatter.ISO_ZONED_DATE_TIME;
+            }
+        }
+
+        @Override
+        public void encode(JsonGenerator generator, Object value) throws IOException {
+            generator.writeString(encoder.format((ZonedDateTime) value));
+        }
+
+        @Override
+        public Object decode(JsonNode node) {
+            return ZonedDateTime.parse(node.asText(), decoder).withZoneSameInstant(ZoneOffset.UTC);
+        }
+    }
+
+    static final class EncodedEntity extends JsonSerializable.Base {
+        private final ObjectCodec codec;
+        private final Object entity;
+
+        EncodedEntity(ObjectCodec codec, Object entity) {
+            this.codec = codec;
+            this.entity = entity;
+        }
+
+        @Override
+        public void serialize(JsonGenerator generator, SerializerProvider provider) throws IOException {
+            codec.encode(generator, entity);
+        }
+
+        @Override
+        public void serializeWithType(JsonGenerator generator, SerializerProvider provider, TypeSerializer typeSerializer) throws IOException {
+            codec.encode(generator, entity);
+        }
+    }
+}
@@ -1,8 +1,18 @@
 package core.ext.cosmos.impl;
 
 import com.azure.cosmos.CosmosContainer;
+import com.azure.cosmos.CosmosDiagnostics;
 import com.azure.cosmos.CosmosException;
 import com.azure.cosmos.implementation.HttpConstants;
+import com.azure.cosmos.models.CosmosBatch;
+import com.azure.cosmos.models.CosmosBatchOperationResult;
+import com.azure.cosmos.models.CosmosBatchResponse;
+import com.azure.cosmos.models.CosmosBulkExecutionOptions;
+import com.azure.cosmos.models.CosmosBulkItemResponse;
+import com.azure.cosmos.models.CosmosBulkOperationResponse;
+import com.azure.cosmos.models.CosmosBulkOperations;
+import com.azure.cosmos.models.CosmosItemIdentity;
+import com.azure.cosmos.models.CosmosItemOperation;
 import com.azure.cosmos.models.CosmosItemRequestOptions;
 import com.azure.cosmos.models.CosmosItemResponse;
 import com.azure.cosmos.models.CosmosQueryRequestOptions;
@@ -10,95 +20,213 @@ import com.azure.cosmos.models.FeedResponse;
 import com.azure.cosmos.models.PartitionKey;
 import com.azure.cosmos.models.SqlQuerySpec;
 import com.azure.cosmos.util.CosmosPagedIterable;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import core.ext.cosmos.CosmosBatchOperation;
+import core.ext.cosmos.CosmosBatchResult;
+import core.ext.cosmos.CosmosBulkResult;
+import core.ext.cosmos.CosmosPage;
 import core.ext.cosmos.CosmosRepository;
-import core.ext.cosmos.Entity;
+import core.framework.internal.log.LogManager;
 import core.framework.internal.validate.Validator;
-import core.framework.log.ActionLogContext;
 import core.framework.log.Markers;
+import core.framework.util.Maps;
 import core.framework.util.StopWatch;
 import core.framework.util.Strings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static core.framework.util.Strings.format;
 
 /**
  * @author Neal
  */
 public class CosmosEntityImpl<T> implements CosmosRepository<T> {
+    private static final int BULK_CHUNK_SIZE = 100;     // same as max micro batch size of sdk
     private final Logger logger = LoggerFactory.getLogger(CosmosEntityImpl.class);
+    final CosmosEntityMetadata<T> metadata;
     private final CosmosImpl cosmos;
     private final Class<T> entityClass;
     private final String entityName;
     private final Validator<T> validator;
-    private CosmosContainer cosmosContainer;
+    private final CosmosEntityCache<T> cache;
+    private final CosmosEntityCodec<T> codec;
 
-    public CosmosEntityImpl(CosmosImpl cosmos, Class<T> entityClass) {
+    CosmosEntityImpl(CosmosImpl cosmos, CosmosEntityMetadata<T> metadata) {
         this.cosmos = cosmos;
-        this.entityClass = entityClass;
-        this.validator = Validator.of(entityClass);
-        this.entityName = entityClass.getAnnotation(Entity.class).name();
+        this.metadata = metadata;
+        this.entityClass = metadata.entityClass;
+        this.entityName = metadata.entityName;
+        this.validator = metadata.validator;
+        this.cache = metadata.cache;
+        this.codec = metadata.codec;
     }
 
     @Override
     public Optional<T> get(String id) {
-        StopWatch watch = new StopWatch();
+        metadata.checkIdAsPartitionKey("get(id)");
+        return get(id, id);
+    }
+
+    @Override
+    public Optional<T> get(String id, String partitionKey) {
         if (Strings.isBlank(id)) throw new Error("id must not be null");
-        double requestCharge = 0d; //todo maybe trace each charge, two precision
+        if (Strings.isBlank(partitionKey)) throw new Error("partitionKey must not be null");
+        String key = metadata.cacheKey(id, partitionKey);
+        if (metadata.writeBehind != null) {
+            ObjectNode buffered = metadata.writeBehind.get(key);
+            if (buffered != null) return Optional.of(codec.decode(buffered));
+        }
+        if (cache == null) return read(id, partitionKey);
+        CosmosEntityCache.Item<T> item = cache.get(key);
+        if (item != null) return Optional.ofNullable(item.value);
+        long generation = cache.generation();
+        Optional<T> result = read(id, partitionKey);
+        cache.put(key, result.orElse(null), generation);
+        return result;
+    }
+
+    private Optional<T> read(String id, String partitionKey) {
+        cosmos.acquire(entityName, false);
+        StopWatch watch = new StopWatch();
+        double requestCharge = 0d;
         int returnedDocs = 0;
+        CosmosDiagnostics diagnostics = null;
         try {
-            CosmosItemResponse<T> result = cosmosContainer().readItem(id, new PartitionKey(id), entityClass);
-            if (result.getItem() != null) returnedDocs = 1;
+            CosmosItemResponse<ObjectNode> result = cosmos.hedging == null
+                ? cosmosContainer().readItem(id, new PartitionKey(partitionKey), ObjectNode.class)
+                : cosmos.hedgedRead(entityName, () -> cosmosContainer().readItem(id, new PartitionKey(partitionKey), ObjectNode.class),
+                    container -> container.readItem(id, new PartitionKey(partitionKey), ObjectNode.class)).block();
             requestCharge = result.getRequestCharge();
-            return Optional.ofNullable(result.getItem());
+            diagnostics = result.getDiagnostics();
+            ObjectNode item = result.getItem();
+            if (item == null) return Optional.empty();
+            returnedDocs = 1;
+            return Optional.of(codec.decode(item));
         } catch (CosmosException ex) {
+            diagnostics = ex.getDiagnostics();
             if (ex.getStatusCode() == HttpConstants.StatusCodes.NOTFOUND)//404 + 429
                 return Optional.empty();
-            throw ex;
+            throw cosmos.throttled(entityName, ex);
         } finally {
             long elapsed = watch.elapsed();
-            ActionLogContext.track("cosmos", elapsed, returnedDocs, 0);
-            logger.debug("get, entity={}, id={}, returnedDocs={}, requestCharge={}, elapsed={}",
+            track("get", elapsed, returnedDocs, 0, requestCharge, diagnostics);
+            logger.debug("get, entity={}, id={}, partitionKey={}, returnedDocs={}, requestCharge={}, elapsed={}",
                 entityName,
                 id,
+                partitionKey,
                 returnedDocs,
                 requestCharge,
                 elapsed);
-            checkSlowOperation(elapsed);
         }
     }
 
     @Override
-    public void upsert(T entity) {
+    public List<T> get(List<String> ids) {
         var watch = new StopWatch();
+        metadata.checkIdAsPartitionKey("get(ids)");
+        if (ids.isEmpty()) return List.of();
+        cosmos.acquire(entityName, false);
+        double requestCharge = 0d;
+        int returnedDocs = 0;
+        CosmosDiagnostics diagnostics = null;
+        try {
+            Set<String> uniqueIds = new LinkedHashSet<>(ids);
+            List<CosmosItemIdentity> identities = new ArrayList<>(uniqueIds.size());
+            for (String id : uniqueIds) {
+                if (Strings.isBlank(id)) throw new Error("id must not be null");
+                identities.add(new CosmosItemIdentity(new PartitionKey(id), id));
+            }
+            FeedResponse<ObjectNode> response = cosmosContainer().readMany(identities, ObjectNode.class);
+            requestCharge = response.getRequestCharge();
+            diagnostics = response.getCosmosDiagnostics();
+            Map<String, T> entities = Maps.newHashMapWithExpectedSize(uniqueIds.size());
+            for (ObjectNode node : response.getResults()) {
+                T entity = codec.decode(node);
+                entities.put(metadata.id(entity), entity);
+            }
+            List<T> results = new ArrayList<>(entities.size());
+            for (String id : uniqueIds) {
+                T entity = entities.get(id);
+                if (entity != null) results.add(entity);
+            }
+            returnedDocs = results.size();
+            return results;
+        } catch (CosmosException e) {
+            diagnostics = e.getDiagnostics();
+            throw cosmos.throttled(entityName, e);
+        } finally {
+            long elapsed = watch.elapsed();
+            track("getMany", elapsed, returnedDocs, 0, requestCharge, diagnostics);
+            logger.debug("getMany, entity={}, ids={}, returnedDocs={}, requestCharge={}, elapsed={}", entityName, ids, returnedDocs, requestCharge, elapsed);
+        }
+    }
+
+    @Override
+    public void upsert(T entity) {
         validator.validate(entity, false);
+        if (metadata.writeBehind != null) {
+            metadata.writeBehind.put(metadata.cacheKey(entity), metadata.id(entity), codec.encodeNode(entity), metadata.partitionKey(entity));
+            return;
+        }
+        cosmos.acquire(entityName, false);
+        var watch = new StopWatch();
         double requestCharge = 0d;
+        CosmosDiagnostics diagnostics = null;
         try {
-            CosmosItemResponse<T> response = cosmosContainer().upsertItem(entity);
+            CosmosItemResponse<JsonSerializable> response = cosmosContainer().upsertItem(codec.encode(entity), metadata.partitionKey(entity), new CosmosItemRequestOptions());
             requestCharge = response.getRequestCharge();
+            diagnostics = response.getDiagnostics();
+        } catch (CosmosException e) {
+            diagnostics = e.getDiagnostics();
+            throw cosmos.throttled(entityName, e);
         } finally {
+            metadata.invalidate(metadata.cacheKey(entity));
             long elapsed = watch.elapsed();
-            ActionLogContext.track("cosmos", elapsed, 0, 1);
+            track("upsert", elapsed, 0, 1, requestCharge, diagnostics);
             logger.debug("upsert, entity={}, requestCharge={}, elapsed={}", entityName, requestCharge, elapsed);
-            checkSlowOperation(elapsed);
         }
     }
 
     @Override
     public void insert(T entity) {
-        var watch = new StopWatch();
         validator.validate(entity, false);
+        if (metadata.writeBehind != null) metadata.writeBehind.remove(metadata.cacheKey(entity));
+        cosmos.acquire(entityName, false);
+        var watch = new StopWatch();
         double requestCharge = 0d;
+        CosmosDiagnostics diagnostics = null;
         try {
-            CosmosItemResponse<T> response = cosmosContainer().createItem(entity);
+            CosmosItemResponse<JsonSerializable> response = cosmosContainer().createItem(codec.encode(entity), metadata.partitionKey(entity), new CosmosItemRequestOptions());
             requestCharge = response.getRequestCharge();
+            diagnostics = response.getDiagnostics();
+        } catch (CosmosException e) {
+            diagnostics = e.getDiagnostics();
+            throw cosmos.throttled(entityName, e);
         } finally {
+            metadata.invalidate(metadata.cacheKey(entity));
             long elapsed = watch.elapsed();
-            ActionLogContext.track("cosmos", elapsed, 0, 1);
+            track("insert", elapsed, 0, 1, requestCharge, diagnostics);
             logger.debug("insert, entity={}, requestCharge={}, elapsed={}", entityName, requestCharge, elapsed);
-            checkSlowOperation(elapsed);
         }
     }
 
@@ -109,28 +237,21 @@ public class CosmosEntityImpl<T> implements CosmosRepository<T> {
 
     @Override
     public <V> Optional<V> findOne(SqlQuerySpec query, Class<V> clazz) {
-        var watch = new StopWatch();
-        int returnedDocs = 0;
-        double requestCharge = 0d;
+        return findOne(query, new CosmosQueryRequestOptions(), clazz);
+    }
+
+    @Override
+    public <V> Optional<V> findOne(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz) {
+        CosmosQueryIterator<?, V> iterator = cosmos.hedging == null ? query(query, options, clazz, false) : hedgedQuery(query, options, clazz);
         try {
-            List<V> results = new ArrayList<>();
-            CosmosPagedIterable<V> items = cosmosContainer().queryItems(query, new CosmosQueryRequestOptions(), clazz);
-            requestCharge = fetch(items, results);
-            if (results.isEmpty()) return Optional.empty();
-            if (results.size() > 1) throw new Error("more than one row returned");
-            returnedDocs = 1;
-            return Optional.of(results.get(0));
+            if (!iterator.hasNext()) return Optional.empty();
+            V result = iterator.next();
+            if (iterator.hasNext()) throw new Error("more than one row returned");
+            return Optional.of(result);
+        } catch (CosmosException e) {
+            throw cosmos.throttled(entityName, e);
         } finally {
-            long elapsed = watch.elapsed();
-            ActionLogContext.track("cosmos", elapsed, returnedDocs, 0);
-            logger.debug("findOne, class={}, sql={}, params={}, returnedDocs={}, requestCharge={}, elapsed={}",
-                clazz.getSimpleName(),
-                query.getQueryText(),
-                query.getParameters(),
-                returnedDocs,
-                requestCharge,
-                elapsed);
-            checkSlowOperation(elapsed);
+            trackQuery("findOne", query, clazz, iterator, false);
         }
     }
 
@@ -141,68 +262,476 @@ public class CosmosEntityImpl<T> implements CosmosRepository<T> {
 
     @Override
     public <V> List<V> find(SqlQuerySpec query, Class<V> clazz) {
+        return find(query, new CosmosQueryRequestOptions(), clazz);
+    }
+
+    @Override
+    public <V> List<V> find(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz) {
+        CosmosQueryIterator<?, V> iterator = query(query, options, clazz, false);
+        try {
+            List<V> results = new ArrayList<>();
+            iterator.forEachRemaining(results::add);
+            cosmos.checkTooManyRowsReturned(results.size());
+            return results;
+        } catch (CosmosException e) {
+            throw cosmos.throttled(entityName, e);
+        } finally {
+            trackQuery("find", query, clazz, iterator, false);
+        }
+    }
+
+    @Override
+    public CosmosPage<T> find(SqlQuerySpec query, int pageSize, String continuationToken) {
+        return find(query, entityClass, pageSize, continuationToken);
+    }
+
+    @Override
+    public <V> CosmosPage<V> find(SqlQuerySpec query, Class<V> clazz, int pageSize, String continuationToken) {
+        return find(query, new CosmosQueryRequestOptions(), clazz, pageSize, continuationToken);
+    }
+
+    @Override
+    public <V> CosmosPage<V> find(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz, int pageSize, String continuationToken) {
         var watch = new StopWatch();
-        List<V> results = new ArrayList<>();
+        if (pageSize <= 0) throw new Error("pageSize must be greater than 0, pageSize=" + pageSize);
+        cosmos.acquire(entityName, false);
+        int returnedDocs = 0;
         double requestCharge = 0d;
+        boolean sampled = cosmos.sampleDiagnostics();
+        CosmosDiagnostics diagnostics = null;
+        String indexMetrics = null;
         try {
-            CosmosPagedIterable<V> items = cosmosContainer().queryItems(query, new CosmosQueryRequestOptions(), clazz);
-            items.iterableByPage().forEach(page -> page.getRequestCharge());
-            requestCharge = fetch(items, results);
-            checkTooManyRowsReturned(results.size());
-            return results;
+            var page = new CosmosPage<V>();
+            FeedResponse<?> response = queryPage(cosmos.project(query, entityClass, clazz), cosmos.queryOptions(options, sampled), metadata.decoder(clazz), continuationToken, pageSize, page);
+            if (response != null) {
+                requestCharge = response.getRequestCharge();
+                diagnostics = response.getCosmosDiagnostics();
+                indexMetrics = response.getIndexMetrics();
+            }
+            returnedDocs = page.items.size();
+            return page;
+        } catch (CosmosException e) {
+            diagnostics = e.getDiagnostics();
+            throw cosmos.throttled(entityName, e);
         } finally {
             long elapsed = watch.elapsed();
-            int size = results.size();
-            ActionLogContext.track("cosmos", elapsed, size, 0);
-            logger.debug("find, clazz={}, sql={}, params={}, returnedDocs={}, requestCharge={}, elapsed={}",
+            Supplier<String> sampledDiagnostics = null;
+            if (sampled && diagnostics != null) {
+                CosmosDiagnostics pageDiagnostics = diagnostics;
+                String pageIndexMetrics = indexMetrics;
+                sampledDiagnostics = () -> CosmosQueryIterator.diagnostics(1, pageIndexMetrics, pageDiagnostics);
+            }
+            cosmos.track(LogManager.CURRENT_ACTION_LOG.get(), entityName, "findPage", elapsed, returnedDocs, 0, requestCharge, sampledDiagnostics);
+            logger.debug("findPage, entity={}, class={}, sql={}, params={}, pageSize={}, returnedDocs={}, requestCharge={}, elapsed={}",
                 entityName,
+                clazz.getSimpleName(),
                 query.getQueryText(),
                 query.getParameters(),
-                size,
+                pageSize,
+                returnedDocs,
                 requestCharge,
                 elapsed);
-            checkSlowOperation(elapsed);
+        }
+    }
+
+    @Override
+    public void forEach(SqlQuerySpec query, Consumer<T> consumer) {
+        forEach(query, entityClass, consumer);
+    }
+
+    @Override
+    public <V> void forEach(SqlQuerySpec query, Class<V> clazz, Consumer<V> consumer) {
+        forEach(query, new CosmosQueryRequestOptions(), clazz, consumer);
+    }
+
+    @Override
+    public <V> void forEach(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz, Consumer<V> consumer) {
+        CosmosQueryIterator<?, V> iterator = query(query, options, clazz, true);
+        try {
+            iterator.forEachRemaining(consumer);
+        } catch (CosmosException e) {
+            throw cosmos.throttled(entityName, e);
+        } finally {
+            trackQuery("forEach", query, clazz, iterator, true);
+        }
+    }
+
+    @Override
+    public <V> Stream<V> stream(SqlQuerySpec query, Class<V> clazz) {
+        return stream(query, new CosmosQueryRequestOptions(), clazz);
+    }
+
+    @Override
+    public <V> Stream<V> stream(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz) {
+        CosmosQueryIterator<?, V> iterator = query(query, options, clazz, true);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+            .onClose(() -> trackQuery("stream", query, clazz, iterator, true));
+    }
+
+    @Override
+    public long count(SqlQuerySpec query) {
+        return count(query, new CosmosQueryRequestOptions());
+    }
+
+    @Override
+    public long count(SqlQuerySpec query, CosmosQueryRequestOptions options) {
+        return value("count", query, options, Long.class, false).orElse(0L);
+    }
+
+    @Override
+    public boolean exists(SqlQuerySpec query) {
+        return exists(query, new CosmosQueryRequestOptions());
+    }
+
+    @Override
+    public boolean exists(SqlQuerySpec query, CosmosQueryRequestOptions options) {
+        return value("exists", query, options, JsonNode.class, true).isPresent();
+    }
+
+    @Override
+    public <V> Optional<V> scalar(SqlQuerySpec query, Class<V> valueClass) {
+        return scalar(query, new CosmosQueryRequestOptions(), valueClass);
+    }
+
+    @Override
+    public <V> Optional<V> scalar(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> valueClass) {
+        return value("scalar", query, options, valueClass, false);
+    }
+
+    // value is returned by sdk as is, no document is decoded, exists only fetches until first row
+    private <V> Optional<V> value(String operation, SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> valueClass, boolean first) {
+        cosmos.acquire(entityName, false);
+        boolean sampled = cosmos.sampleDiagnostics();
+        CosmosPagedIterable<V> items = cosmosContainer().queryItems(query, cosmos.queryOptions(options, sampled), valueClass);
+        var iterator = new CosmosQueryIterator<V, V>(first ? items.iterableByPage(1) : items.iterableByPage(), value -> value, sampled);
+        try {
+            if (!iterator.hasNext()) return Optional.empty();
+            V result = iterator.next();
+            if (!first && iterator.hasNext()) throw new Error("more than one row returned");
+            return Optional.ofNullable(result);
+        } catch (CosmosException e) {
+            throw cosmos.throttled(entityName, e);
+        } finally {
+            trackQuery(operation, query, valueClass, iterator, false);
         }
     }
 
     @Override
     public void delete(String id) {
+        metadata.checkIdAsPartitionKey("delete(id)");
+        delete(id, id);
+    }
+
+    @Override
+    public void delete(String id, String partitionKey) {
+        if (Strings.isBlank(id)) throw new Error("id must not be null");
+        if (Strings.isBlank(partitionKey)) throw new Error("partitionKey must not be null");
+        if (metadata.writeBehind != null) metadata.writeBehind.remove(metadata.cacheKey(id, partitionKey));
+        cosmos.acquire(entityName, false);
         var watch = new StopWatch();
         double requestCharge = 0d;
+        CosmosDiagnostics diagnostics = null;
         try {
-            CosmosItemResponse<Object> response = cosmosContainer().deleteItem(id, new PartitionKey(id), new CosmosItemRequestOptions());
+            CosmosItemResponse<Object> response = cosmosContainer().deleteItem(id, new PartitionKey(partitionKey), new CosmosItemRequestOptions());
             requestCharge = response.getRequestCharge();
+            diagnostics = response.getDiagnostics();
+        } catch (CosmosException e) {
+            diagnostics = e.getDiagnostics();
+            throw cosmos.throttled(entityName, e);
+        } finally {
+            metadata.invalidate(metadata.cacheKey(id, partitionKey));
+            long elapsed = watch.elapsed();
+            track("delete", elapsed, 0, 1, requestCharge, diagnostics);
+            logger.debug("delete, entity={}, id={}, partitionKey={}, requestCharge={}, elapsed={}", entityName, id, partitionKey, requestCharge, elapsed);
+        }
+    }
+
+    @Override
+    public List<CosmosBulkResult> bulkInsert(List<T> entities) {
+        if (entities.isEmpty()) return List.of();
+        List<CosmosItemOperation> operations = new ArrayList<>(entities.size());
+        List<String> cacheKeys = new ArrayList<>(entities.size());
+        for (int index : groupByPartitionKey(entities)) {
+            T entity = entities.get(index);
+            operations.add(CosmosBulkOperations.getCreateItemOperation(codec.encode(entity), metadata.partitionKey(entity), index));
+            cacheKeys.add(metadata.cacheKey(entity));
+        }
+        if (metadata.writeBehind != null) cacheKeys.forEach(metadata.writeBehind::remove);
+        return bulk("bulkInsert", operations, ids(entities), cacheKeys);
+    }
+
+    @Override
+    public List<CosmosBulkResult> bulkUpsert(List<T> entities) {
+        if (entities.isEmpty()) return List.of();
+        List<CosmosItemOperation> operations = new ArrayList<>(entities.size());
+        List<String> cacheKeys = new ArrayList<>(entities.size());
+        for (int index : groupByPartitionKey(entities)) {
+            T entity = entities.get(index);
+            operations.add(CosmosBulkOperations.getUpsertItemOperation(codec.encode(entity), metadata.partitionKey(entity), index));
+            cacheKeys.add(metadata.cacheKey(entity));
+        }
+        if (metadata.writeBehind != null) cacheKeys.forEach(metadata.writeBehind::remove);
+        return bulk("bulkUpsert", operations, ids(entities), cacheKeys);
+    }
+
+    @Override
+    public List<CosmosBulkResult> bulkDelete(List<String> ids) {
+        metadata.checkIdAsPartitionKey("bulkDelete(ids)");
+        if (ids.isEmpty()) return List.of();
+        List<CosmosItemOperation> operations = new ArrayList<>(ids.size());
+        for (int index = 0; index < ids.size(); index++) {
+            String id = ids.get(index);
+            if (Strings.isBlank(id)) throw new Error("id must not be null");
+            operations.add(CosmosBulkOperations.getDeleteItemOperation(id, new PartitionKey(id), index));
+        }
+        if (metadata.writeBehind != null) ids.forEach(metadata.writeBehind::remove);
+        return bulk("bulkDelete", operations, ids, ids);
+    }
+
+    @Override
+    public CosmosBatchResult batch(String partitionKey, List<CosmosBatchOperation<T>> operations) {
+        var watch = new StopWatch();
+        if (Strings.isBlank(partitionKey)) throw new Error("partitionKey must not be null");
+        if (operations.isEmpty()) return emptyBatchResult();
+        if (operations.size() > 100) throw new Error("batch must not have more than 100 operations, size=" + operations.size());
+        CosmosBatch batch = CosmosBatch.createCosmosBatch(new PartitionKey(partitionKey));
+        List<String> cacheKeys = new ArrayList<>(operations.size());
+        for (CosmosBatchOperation<T> operation : operations) {
+            cacheKeys.add(batchOperation(batch, partitionKey, operation));
+        }
+        if (metadata.writeBehind != null) cacheKeys.forEach(metadata.writeBehind::remove);
+        cosmos.acquire(entityName, false);
+        var result = new CosmosBatchResult();
+        CosmosDiagnostics diagnostics = null;
+        try {
+            CosmosBatchResponse response = cosmosContainer().executeCosmosBatch(batch);
+            diagnostics = response.getDiagnostics();
+            result.success = response.isSuccessStatusCode();
+            result.statusCode = response.getStatusCode();
+            result.requestCharge = response.getRequestCharge();
+            if (result.statusCode == HttpConstants.StatusCodes.TOO_MANY_REQUESTS) cosmos.throttled(entityName, response.getRetryAfterDuration());
+            result.results = new ArrayList<>(response.size());
+            List<CosmosBatchOperationResult> operationResults = response.getResults();
+            for (int i = 0; i < operationResults.size(); i++) {
+                CosmosBatchOperationResult operationResult = operationResults.get(i);
+                CosmosBatchOperation<T> operation = operations.get(i);     // results are in same order as operations, sdk operation id is null for create and upsert
+                var itemResult = new CosmosBulkResult();
+                itemResult.id = operation.type == CosmosBatchOperation.Type.DELETE ? operation.id : metadata.id(operation.entity);
+                itemResult.success = operationResult.isSuccessStatusCode();
+                itemResult.statusCode = operationResult.getStatusCode();
+                itemResult.requestCharge = operationResult.getRequestCharge();
+                result.results.add(itemResult);
+            }
+            return result;
+        } catch (CosmosException e) {
+            diagnostics = e.getDiagnostics();
+            throw cosmos.throttled(entityName, e);
         } finally {
+            cacheKeys.forEach(metadata::invalidate);
             long elapsed = watch.elapsed();
-            ActionLogContext.track("cosmos", elapsed, 0, 1);
-            logger.debug("delete, entity={}, id={}, requestCharge={}, elapsed={}", entityName, id, requestCharge, elapsed);
-            checkSlowOperation(elapsed);
+            track("batch", elapsed, 0, operations.size(), result.requestCharge, diagnostics);
+            logger.debug("batch, entity={}, partitionKey={}, operations={}, success={}, statusCode={}, requestCharge={}, elapsed={}",
+                entityName,
+                partitionKey,
+                operations.size(),
+                result.success,
+                result.statusCode,
+                result.requestCharge,
+                elapsed);
+        }
+    }
+
+    private CosmosBatchResult emptyBatchResult() {
+        var result = new CosmosBatchResult();
+        result.success = true;
+        result.statusCode = HttpConstants.StatusCodes.OK;
+        result.results = List.of();
+        return result;
+    }
+
+    // return cache key of operation
+    private String batchOperation(CosmosBatch batch, String partitionKey, CosmosBatchOperation<T> operation) {
+        if (operation.type == CosmosBatchOperation.Type.DELETE) {
+            if (Strings.isBlank(operation.id)) throw new Error("id must not be null");
+            batch.deleteItemOperation(operation.id);
+            return metadata.cacheKey(operation.id, partitionKey);
+        }
+        T entity = operation.entity;
+        if (entity == null) throw new Error("entity must not be null");
+        validator.validate(entity, false);
+        String entityPartitionKey = metadata.partitionKeyValue(entity);
+        if (!partitionKey.equals(entityPartitionKey))
+            throw new Error(format("entity partition key must match batch, partitionKey={}, entityPartitionKey={}", partitionKey, entityPartitionKey));
+        JsonSerializable item = codec.encode(entity);
+        switch (operation.type) {
+            case INSERT:
+                batch.createItemOperation(item);
+                break;
+            case UPSERT:
+                batch.upsertItemOperation(item);
+                break;
+            case REPLACE:
+                batch.replaceItemOperation(metadata.id(entity), item);
+                break;
+            default:
+                throw new Error("unknown operation type, type=" + operation.type);
+        }
+        return metadata.cacheKey(entity);
+    }
+
+    // called by write behind, items are validated and encoded when buffered
+    List<CosmosBulkResult> flush(List<CosmosWriteBehind.Item> items) {
+        List<CosmosItemOperation> operations = new ArrayList<>(items.size());
+        List<String> ids = new ArrayList<>(items.size());
+        List<String> cacheKeys = new ArrayList<>(items.size());
+        for (int index = 0; index < items.size(); index++) {
+            CosmosWriteBehind.Item item = items.get(index);
+            operations.add(CosmosBulkOperations.getUpsertItemOperation(item.node, item.partitionKey, index));
+            ids.add(item.id);
+            cacheKeys.add(item.key);
+        }
+        return bulk("writeBehindFlush", operations, ids, cacheKeys);
+    }
+
+    // validate all entities first, and put entities with same partition key together to let sdk pack them into fewer micro batches
+    private List<Integer> groupByPartitionKey(List<T> entities) {
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int index = 0; index < entities.size(); index++) {
+            T entity = entities.get(index);
+            validator.validate(entity, false);
+            groups.computeIfAbsent(metadata.partitionKeyValue(entity), key -> new ArrayList<>()).add(index);
+        }
+        List<Integer> indexes = new ArrayList<>(entities.size());
+        groups.values().forEach(indexes::addAll);
+        return indexes;
+    }
+
+    // ids are in the same order as input, operation context is input index, sdk doesn't keep id of create and upsert operation
+    private List<String> ids(List<T> entities) {
+        List<String> ids = new ArrayList<>(entities.size());
+        for (T entity : entities) {
+            ids.add(metadata.id(entity));
         }
+        return ids;
     }
 
-    private <V> double fetch(CosmosPagedIterable<V> iterable, List<V> results) {
+    // executed chunk by chunk, each chunk acquires throttle and its charge is consumed as background, so large bulk is paced and doesn't overdraw the bucket at once
+    private List<CosmosBulkResult> bulk(String operation, List<CosmosItemOperation> operations, List<String> ids, List<String> cacheKeys) {
+        var watch = new StopWatch();
         double requestCharge = 0d;
-        for (FeedResponse<V> response : iterable.iterableByPage()) {
-            requestCharge += response.getRequestCharge();
-            response.getElements().forEach(element -> results.add(element));
+        int failedDocs = 0;
+        CosmosBulkResult[] results = new CosmosBulkResult[operations.size()];
+        try {
+            var options = new CosmosBulkExecutionOptions();
+            options.setMaxMicroBatchConcurrency(cosmos.bulkMaxConcurrency);
+            for (int from = 0; from < operations.size(); from += BULK_CHUNK_SIZE) {
+                cosmos.acquire(entityName, true);
+                double chunkRequestCharge = 0d;
+                try {
+                    List<CosmosItemOperation> chunk = operations.subList(from, Math.min(from + BULK_CHUNK_SIZE, operations.size()));
+                    for (CosmosBulkOperationResponse<Integer> response : cosmosContainer().executeBulkOperations(chunk, options)) {
+                        int index = response.getOperation().getContext();
+                        CosmosBulkResult result = result(ids.get(index), response.getResponse(), response.getException());
+                        chunkRequestCharge += result.requestCharge;
+                        if (!result.success) failedDocs++;
+                        results[index] = result;
+                    }
+                } finally {
+                    requestCharge += chunkRequestCharge;
+                    cosmos.consume(entityName, chunkRequestCharge, true);
+                }
+            }
+            return Arrays.asList(results);
+        } finally {
+            cacheKeys.forEach(metadata::invalidate);
+            long elapsed = watch.elapsed();
+            cosmos.record(entityName, operation, elapsed, requestCharge);
+            cosmos.trackAction(LogManager.CURRENT_ACTION_LOG.get(), entityName, operation, elapsed, 0, operations.size(), requestCharge, null);
+            logger.debug("{}, entity={}, docs={}, failedDocs={}, requestCharge={}, elapsed={}", operation, entityName, operations.size(), failedDocs, requestCharge, elapsed);
+            if (failedDocs > 0)
+                logger.warn(Markers.errorCode("COSMOSDB_BULK_FAILED"), "failed to execute bulk operation, operation={}, entity={}, failedDocs={}", operation, entityName, failedDocs);
         }
-        return requestCharge;
     }
 
-    private void checkSlowOperation(long elapsed) {
-        if (elapsed > cosmos.slowOperationThresholdInNanos)
-            logger.warn(Markers.errorCode("SLOW_COSMOSDB"), "slow cosmosDB query, elapsed={}", elapsed);
+    private CosmosBulkResult result(String id, CosmosBulkItemResponse response, Exception exception) {
+        var result = new CosmosBulkResult();
+        result.id = id;
+        if (response != null) {
+            result.success = response.isSuccessStatusCode();
+            result.statusCode = response.getStatusCode();
+            result.requestCharge = response.getRequestCharge();
+            if (result.statusCode == HttpConstants.StatusCodes.TOO_MANY_REQUESTS) cosmos.throttled(entityName, response.getRetryAfterDuration());
+        } else if (exception instanceof CosmosException) {
+            result.statusCode = ((CosmosException) exception).getStatusCode();
+        }
+        return result;
     }
 
-    private void checkTooManyRowsReturned(int size) {
-        if (size > cosmos.tooManyRowsReturnedThreshold)
-            logger.warn(Markers.errorCode("TOO_MANY_ROWS_RETURNED"), "too many rows returned, returnedRows={}", size);
+    private <V> CosmosQueryIterator<?, V> query(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz, boolean background) {
+        cosmos.acquire(entityName, background);
+        boolean sampled = cosmos.sampleDiagnostics();
+        return query(cosmos.project(query, entityClass, clazz), cosmos.queryOptions(options, sampled), metadata.decoder(clazz), sampled);
     }
 
-    private CosmosContainer cosmosContainer() {
-        if (this.cosmosContainer == null) {
-            this.cosmosContainer = cosmos.getDatabase().getContainer(entityName);
+    private <R, V> CosmosQueryIterator<R, V> query(SqlQuerySpec query, CosmosQueryRequestOptions options, CosmosEntityMetadata.Decoder<R, V> decoder, boolean sampled) {
+        CosmosPagedIterable<R> items = cosmosContainer().queryItems(query, options, decoder.itemClass);
+        return new CosmosQueryIterator<>(items.iterableByPage(), decoder.decode, sampled);
+    }
+
+    // return null if no page returned
+    private <R, V> FeedResponse<R> queryPage(SqlQuerySpec query, CosmosQueryRequestOptions options, CosmosEntityMetadata.Decoder<R, V> decoder, String continuationToken, int pageSize, CosmosPage<V> page) {
+        Iterator<FeedResponse<R>> pages = cosmosContainer().queryItems(query, options, decoder.itemClass).iterableByPage(continuationToken, pageSize).iterator();
+        if (!pages.hasNext()) {
+            page.items = List.of();
+            return null;
         }
-        return cosmosContainer;
+        FeedResponse<R> response = pages.next();
+        page.items = decoder.decode(response.getResults());
+        page.continuationToken = response.getContinuationToken();
+        return response;
+    }
+
+    // all pages are read by winner of hedged read, then iterated as normal query, primary reads via sync client same as writes
+    private <V> CosmosQueryIterator<?, V> hedgedQuery(SqlQuerySpec query, CosmosQueryRequestOptions options, Class<V> clazz) {
+        cosmos.acquire(entityName, false);
+        boolean sampled = cosmos.sampleDiagnostics();
+        return hedgedQuery(cosmos.project(query, entityClass, clazz), cosmos.queryOptions(options, sampled), metadata.decoder(clazz), sampled);
+    }
+
+    private <R, V> CosmosQueryIterator<R, V> hedgedQuery(SqlQuerySpec query, CosmosQueryRequestOptions options, CosmosEntityMetadata.Decoder<R, V> decoder, boolean sampled) {
+        Callable<List<FeedResponse<R>>> primary = () -> {
+            List<FeedResponse<R>> results = new ArrayList<>();
+            cosmosContainer().queryItems(query, options, decoder.itemClass).iterableByPage().forEach(results::add);
+            return results;
+        };
+        Flux<FeedResponse<R>> pages = cosmos.hedgedRead(entityName, primary, container -> container.queryItems(query, options, decoder.itemClass).byPage().collectList())
+            .flatMapIterable(results -> results);
+        return new CosmosQueryIterator<>(pages.toIterable(), decoder.decode, sampled);
+    }
+
+    // charge of forEach/stream is consumed as background, scanning large result must not block interactive callers
+    private void trackQuery(String operation, SqlQuerySpec query, Class<?> clazz, CosmosQueryIterator<?, ?> iterator, boolean background) {
+        cosmos.record(entityName, operation, iterator.elapsed, iterator.requestCharge);
+        cosmos.consume(entityName, iterator.requestCharge, background);
+        cosmos.trackAction(LogManager.CURRENT_ACTION_LOG.get(), entityName, operation, iterator.elapsed, iterator.returnedDocs, 0, iterator.requestCharge, iterator.diagnostics());
+        logger.debug("{}, entity={}, class={}, sql={}, params={}, returnedDocs={}, requestCharge={}, elapsed={}",
+            operation,
+            entityName,
+            clazz.getSimpleName(),
+            query.getQueryText(),
+            query.getParameters(),
+            iterator.returnedDocs,
+            iterator.requestCharge,
+            iterator.elapsed);
+    }
+
+    // point operations decide sampling after completion, diagnostics object is returned with every response anyway
+    private void track(String operation, long elapsed, int readDocs, int writeDocs, double requestCharge, CosmosDiagnostics diagnostics) {
+        Supplier<String> sampledDiagnostics = diagnostics != null && cosmos.sampleDiagnostics() ? diagnostics::toString : null;
+        cosmos.track(LogManager.CURRENT_ACTION_LOG.get(), entityName, operation, elapsed, readDocs, writeDocs, requestCharge, sampledDiagnostics);
+    }
+
+    private CosmosContainer cosmosContainer() {
+        return cosmos.container(entityName);
     }
 }
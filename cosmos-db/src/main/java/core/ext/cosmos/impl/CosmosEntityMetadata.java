@@ -0,0 +1,104 @@
+package core.ext.cosmos.impl;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import core.ext.cosmos.Entity;
+import core.framework.internal.validate.Validator;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static core.framework.util.Strings.format;
+
+/**
+ * shared by sync and async repository of same entity
+ *
+ * @author Neal
+ */
+final class CosmosEntityMetadata<T> {
+    final Class<T> entityClass;
+    final String entityName;
+    final Validator<T> validator;
+    final CosmosEntityCache<T> cache;
+    final CosmosEntityCodec<T> codec;
+    CosmosWriteBehind<T> writeBehind;     // null if write behind is disabled
+    private final Field idField;
+    private final Field partitionKeyField;
+
+    CosmosEntityMetadata(Class<T> entityClass, CosmosClassValidator classValidator, CosmosEntityCache<T> cache) {
+        this.entityClass = entityClass;
+        this.entityName = entityClass.getAnnotation(Entity.class).name();
+        this.validator = Validator.of(entityClass);
+        this.idField = classValidator.id;
+        this.partitionKeyField = classValidator.partitionKey == null ? idField : classValidator.partitionKey;
+        this.cache = cache;
+        this.codec = classValidator.codec(entityClass);
+    }
+
+    // entity class is queried as ObjectNode and decoded by generated codec, view class is queried as is and decoded by sdk object mapper
+    <V> Decoder<?, V> decoder(Class<V> viewClass) {
+        if (viewClass == entityClass) return new Decoder<>(ObjectNode.class, node -> viewClass.cast(codec.decode(node)));
+        return new Decoder<>(viewClass, Function.identity());
+    }
+
+    void checkIdAsPartitionKey(String method) {
+        if (partitionKeyField != idField)
+            throw new Error(format("{} requires id as partition key, please pass partitionKey, entity={}", method, entityName));
+    }
+
+    String cacheKey(String id, String partitionKey) {
+        if (partitionKeyField == idField) return id;
+        return partitionKey + '/' + id;
+    }
+
+    String cacheKey(T entity) {
+        return cacheKey(id(entity), partitionKeyValue(entity));
+    }
+
+    // invalidate after write completed, so concurrent read started before write won't put stale entity back
+    void invalidate(String cacheKey) {
+        if (cache != null) cache.invalidate(cacheKey);
+    }
+
+    PartitionKey partitionKey(T entity) {
+        return new PartitionKey(partitionKeyValue(entity));
+    }
+
+    String partitionKeyValue(T entity) {
+        String value = fieldValue(partitionKeyField, entity);
+        if (value == null) throw new Error("partition key must not be null, field=" + partitionKeyField.getName());
+        return value;
+    }
+
+    String id(T entity) {
+        return fieldValue(idField, entity);
+    }
+
+    private String fieldValue(Field field, T entity) {
+        try {
+            return (String) field.get(entity);
+        } catch (IllegalAccessException e) {
+            throw new Error(e);
+        }
+    }
+
+    static final class Decoder<R, V> {
+        final Class<R> itemClass;     // class of items returned by sdk
+        final Function<R, V> decode;
+
+        Decoder(Class<R> itemClass, Function<R, V> decode) {
+            this.itemClass = itemClass;
+            this.decode = decode;
+        }
+
+        List<V> decode(List<R> items) {
+            List<V> results = new ArrayList<>(items.size());
+            for (R item : items) {
+                results.add(decode.apply(item));
+            }
+            return results;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package core.ext.cosmos.impl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * completed on sdk io threads, as action log is not thread safe, completed operations are queued per action and tracked on caller thread,
+ * when it joins this or any dependent future (thenApply/thenCompose), or issues next cosmos operation
+ *
+ * @author Neal
+ */
+final class CosmosFuture<T> extends CompletableFuture<T> {
+    private final CosmosImpl cosmos;
+
+    CosmosFuture(CosmosImpl cosmos) {
+        this.cosmos = cosmos;
+    }
+
+    @Override
+    public T join() {
+        try {
+            return super.join();
+        } finally {
+            cosmos.trackAsyncOperations();
+        }
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        try {
+            return super.get();
+        } finally {
+            cosmos.trackAsyncOperations();
+        }
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        try {
+            return super.get(timeout, unit);
+        } finally {
+            cosmos.trackAsyncOperations();
+        }
+    }
+
+    @Override
+    public <U> CompletableFuture<U> newIncompleteFuture() {
+        return new CosmosFuture<>(cosmos);
+    }
+}
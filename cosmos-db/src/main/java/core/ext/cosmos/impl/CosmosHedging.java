@@ -0,0 +1,46 @@
+package core.ext.cosmos.impl;
+
+import core.framework.internal.stat.Metrics;
+import core.framework.internal.stat.Stats;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * speculative read, if primary read doesn't respond within delay, same read is sent via hedge client which prefers next region,
+ * first response wins and the other is cancelled, failed hedge never wins, so primary error is always reported
+ *
+ * @author Neal
+ */
+public final class CosmosHedging implements Metrics {
+    private final Duration delay;
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong wins = new AtomicLong();
+
+    CosmosHedging(Duration delay) {
+        if (delay == null || delay.isNegative() || delay.isZero()) throw new Error("hedge delay must be greater than 0, delay=" + delay);
+        this.delay = delay;
+    }
+
+    <R> Mono<R> read(Mono<R> primary, Supplier<Mono<R>> hedge) {
+        reads.incrementAndGet();
+        Mono<R> hedged = Mono.delay(delay)
+            .then(Mono.defer(() -> {
+                hedges.incrementAndGet();
+                return hedge.get();
+            }))
+            .doOnNext(result -> wins.incrementAndGet())
+            .onErrorResume(e -> Mono.never());
+        return Mono.firstWithSignal(primary, hedged);
+    }
+
+    @Override
+    public void collect(Stats stats) {
+        stats.put("cosmos_hedge_reads", reads.getAndSet(0));
+        stats.put("cosmos_hedge_count", hedges.getAndSet(0));
+        stats.put("cosmos_hedge_wins", wins.getAndSet(0));
+    }
+}
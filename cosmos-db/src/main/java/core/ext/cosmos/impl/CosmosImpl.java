@@ -1,18 +1,44 @@
 package core.ext.cosmos.impl;
 
 import com.azure.cosmos.ConsistencyLevel;
+import com.azure.cosmos.CosmosAsyncClient;
+import com.azure.cosmos.CosmosAsyncContainer;
+import com.azure.cosmos.CosmosAsyncDatabase;
 import com.azure.cosmos.CosmosClient;
 import com.azure.cosmos.CosmosClientBuilder;
+import com.azure.cosmos.CosmosContainer;
 import com.azure.cosmos.CosmosDatabase;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.DirectConnectionConfig;
+import com.azure.cosmos.GatewayConnectionConfig;
+import com.azure.cosmos.implementation.HttpConstants;
+import com.azure.cosmos.models.CosmosQueryRequestOptions;
+import com.azure.cosmos.models.ModelBridgeInternal;
+import com.azure.cosmos.models.SqlQuerySpec;
 import core.ext.cosmos.Cosmos;
-import core.ext.cosmos.CosmosRepository;
+import core.ext.cosmos.CosmosAsyncRepository;
+import core.framework.internal.log.ActionLog;
 import core.framework.internal.log.LogManager;
+import core.framework.log.Markers;
+import core.framework.util.Maps;
 import core.framework.util.StopWatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.WeakHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * @author Neal
@@ -20,42 +46,144 @@ import java.util.List;
 public class CosmosImpl implements Cosmos {
     private final Logger logger = LoggerFactory.getLogger(CosmosImpl.class);
     int tooManyRowsReturnedThreshold = 2000;
+    int bulkMaxConcurrency = 1;
+    double requestChargeBudgetPerAction = 10000;
+    private final ThreadLocal<ActionRequestCharge> actionRequestCharge = new ThreadLocal<>();     // action log is tracked on action thread
+    private final Map<ActionLog, List<Consumer<ActionLog>>> asyncOperations = new WeakHashMap<>();    // completed async operations to track on action thread, values must not reference action log
+    public final CosmosStats stats = new CosmosStats();
+    final Map<String, CosmosThrottler> throttlers = Maps.newHashMap();
     long slowOperationThresholdInNanos = Duration.ofSeconds(5).toNanos();
+    double diagnosticsSampleRate;     // disabled by default, metrics and diagnostics add overhead to requests
+    boolean indexMetrics;
+    int diagnosticsMaxLength = 10000;
     String databaseId;
-    CosmosClientBuilder cosmosClientBuilder = new CosmosClientBuilder().consistencyLevel(ConsistencyLevel.SESSION).contentResponseOnWriteEnabled(true)
-        .userAgentSuffix(LogManager.APP_NAME)
-        .gatewayMode();
+    private String endpoint;
+    private String key;
+    private boolean connectionSharingAcrossClients;
+    private final GatewayConnectionConfig gatewayConnectionConfig = GatewayConnectionConfig.getDefaultConfig();
+    private DirectConnectionConfig directConnectionConfig;     // null means gateway mode
     private CosmosClient cosmosClient;
+    private CosmosAsyncClient cosmosAsyncClient;
     public CosmosDatabase database;
+    private CosmosAsyncDatabase asyncDatabase;
+    private final List<String> entityNames = new ArrayList<>();
+    private final Map<String, CosmosContainer> containers = new ConcurrentHashMap<>();
+    private final Map<String, CosmosAsyncContainer> asyncContainers = new ConcurrentHashMap<>();
+    private List<String> preferredRegions;
+    CosmosHedging hedging;     // null if hedged read is disabled
+    private CosmosProjection projection;     // null if view projection is disabled
+    private CosmosAsyncClient hedgeClient;
+    private CosmosAsyncDatabase hedgeDatabase;
+    private final Map<String, CosmosAsyncContainer> hedgeContainers = new ConcurrentHashMap<>();
 
+    // resolve containers and open connections before serving traffic, so first requests don't pay for metadata, address resolution and connection setup,
+    // only direct mode, sdk has nothing to warm up in gateway mode, where requests go through pooled http connections to gateway
     public void initialize() {
         this.database = getDatabase();
+        if (directConnectionConfig == null) {
+            logger.info("skip warming up cosmos containers in gateway mode");
+            return;
+        }
+        for (String entityName : entityNames) {
+            var watch = new StopWatch();
+            CosmosContainer container = container(entityName);
+            try {
+                container.openConnectionsAndInitCaches();
+                if (hedging != null) hedgeContainer(entityName).openConnectionsAndInitCaches().block();
+            } catch (CosmosException e) {
+                logger.warn(Markers.errorCode("COSMOSDB_WARM_UP_FAILED"), "failed to warm up cosmos container, entity={}", entityName, e);
+            } finally {
+                logger.info("warm up cosmos container, entity={}, elapsed={}", entityName, watch.elapsed());
+            }
+        }
     }
 
-    public CosmosDatabase getDatabase() {
+    public synchronized CosmosDatabase getDatabase() {
         if (this.database == null) {
             this.database = createDatabase();
         }
         return this.database;
     }
 
+    // async client is only built when needed, e.g. change feed processor or async repository
+    public synchronized CosmosAsyncDatabase getAsyncDatabase() {
+        if (this.asyncDatabase == null) {
+            this.cosmosAsyncClient = clientBuilder(preferredRegions).buildAsyncClient();
+            this.asyncDatabase = cosmosAsyncClient.getDatabase(this.databaseId);
+        }
+        return this.asyncDatabase;
+    }
+
+    // hedge client prefers next region of preferredRegions, e.g. [eastus, westus, centralus] -> [westus, centralus, eastus]
+    synchronized CosmosAsyncDatabase getHedgeDatabase() {
+        if (this.hedgeDatabase == null) {
+            List<String> regions = new ArrayList<>(preferredRegions);
+            Collections.rotate(regions, -1);
+            this.hedgeClient = clientBuilder(regions).buildAsyncClient();
+            this.hedgeDatabase = hedgeClient.getDatabase(this.databaseId);
+        }
+        return this.hedgeDatabase;
+    }
+
     public void close() {
         if (cosmosClient != null)
             cosmosClient.close();
+        if (cosmosAsyncClient != null)
+            cosmosAsyncClient.close();
+        if (hedgeClient != null)
+            hedgeClient.close();
+    }
+
+    CosmosContainer container(String entityName) {
+        return containers.computeIfAbsent(entityName, name -> getDatabase().getContainer(name));
+    }
+
+    CosmosAsyncContainer asyncContainer(String entityName) {
+        return asyncContainers.computeIfAbsent(entityName, name -> getAsyncDatabase().getContainer(name));
+    }
+
+    CosmosAsyncContainer hedgeContainer(String entityName) {
+        return hedgeContainers.computeIfAbsent(entityName, name -> getHedgeDatabase().getContainer(name));
+    }
+
+    // primary read must use same client as writes of caller, session token is per client, so reads only see own writes (SESSION consistency) via same client,
+    // only delayed hedge is sent via hedge client, hedge read must be idempotent
+    <R> Mono<R> hedgedRead(String entityName, Mono<R> primary, Function<CosmosAsyncContainer, Mono<R>> hedge) {
+        if (hedging == null) return primary;
+        return hedging.read(primary, () -> hedge.apply(hedgeContainer(entityName)));
+    }
+
+    // run blocking read of sync client on bounded elastic scheduler as primary of hedged read
+    <R> Mono<R> hedgedRead(String entityName, Callable<R> primary, Function<CosmosAsyncContainer, Mono<R>> hedge) {
+        return hedgedRead(entityName, Mono.fromCallable(primary).subscribeOn(Schedulers.boundedElastic()), hedge);
     }
 
     private CosmosDatabase createDatabase() {
         if (database != null) throw new Error("CosmosDB already init");
-        this.cosmosClient = this.cosmosClientBuilder.buildClient();
+        this.cosmosClient = clientBuilder(preferredRegions).buildClient();
         return cosmosClient.getDatabase(this.databaseId);
     }
 
+    // new builder per client, builder is mutable and clients may prefer different regions
+    private CosmosClientBuilder clientBuilder(List<String> preferredRegions) {
+        CosmosClientBuilder builder = new CosmosClientBuilder().endpoint(endpoint).key(key).preferredRegions(preferredRegions)
+            .consistencyLevel(ConsistencyLevel.SESSION).contentResponseOnWriteEnabled(true)
+            .connectionSharingAcrossClientsEnabled(connectionSharingAcrossClients)
+            .userAgentSuffix(LogManager.APP_NAME);
+        if (directConnectionConfig == null) {
+            logger.info("create cosmos client, mode=gateway, preferredRegions={}, gatewayConfig={}", preferredRegions, gatewayConnectionConfig);
+            return builder.gatewayMode(gatewayConnectionConfig);
+        }
+        logger.info("create cosmos client, mode=direct, preferredRegions={}, directConfig={}, gatewayConfig={}", preferredRegions, directConnectionConfig, gatewayConnectionConfig);
+        return builder.directMode(directConnectionConfig, gatewayConnectionConfig);
+    }
+
     public void endpoint(String endpoint) {
-        cosmosClientBuilder.endpoint(endpoint);
+        this.endpoint = endpoint;
     }
 
     public void key(String key) {
-        cosmosClientBuilder.key(key);
+        this.key = key;
     }
 
     public void databaseId(String databaseId) {
@@ -63,24 +191,231 @@ public class CosmosImpl implements Cosmos {
     }
 
     public void preferredRegions(List<String> preferredRegions) {
-        cosmosClientBuilder.preferredRegions(preferredRegions);
+        this.preferredRegions = preferredRegions;
+    }
+
+    public void viewProjection() {
+        projection = new CosmosProjection();
+    }
+
+    SqlQuerySpec project(SqlQuerySpec query, Class<?> entityClass, Class<?> viewClass) {
+        if (projection == null || viewClass == entityClass) return query;
+        return projection.project(query, viewClass);
+    }
+
+    public CosmosHedging hedgeReads(Duration delay) {
+        if (hedging != null) throw new Error("cosmos hedged read is already configured");
+        hedging = new CosmosHedging(delay);
+        return hedging;
+    }
+
+    public void directMode() {
+        if (directConnectionConfig == null) directConnectionConfig = DirectConnectionConfig.getDefaultConfig();
+    }
+
+    public void directConnection(int maxConnectionsPerEndpoint, int maxRequestsPerConnection) {
+        if (maxConnectionsPerEndpoint <= 0) throw new Error("maxConnectionsPerEndpoint must be greater than 0, value=" + maxConnectionsPerEndpoint);
+        if (maxRequestsPerConnection <= 0) throw new Error("maxRequestsPerConnection must be greater than 0, value=" + maxRequestsPerConnection);
+        directMode();
+        directConnectionConfig.setMaxConnectionsPerEndpoint(maxConnectionsPerEndpoint);
+        directConnectionConfig.setMaxRequestsPerConnection(maxRequestsPerConnection);
+    }
+
+    public void directIdleTimeout(Duration idleEndpointTimeout, Duration idleConnectionTimeout) {
+        directMode();
+        directConnectionConfig.setIdleEndpointTimeout(idleEndpointTimeout);
+        directConnectionConfig.setIdleConnectionTimeout(idleConnectionTimeout);
+    }
+
+    public void gatewayConnection(int maxConnectionPoolSize, Duration idleConnectionTimeout) {
+        if (maxConnectionPoolSize <= 0) throw new Error("maxConnectionPoolSize must be greater than 0, value=" + maxConnectionPoolSize);
+        gatewayConnectionConfig.setMaxConnectionPoolSize(maxConnectionPoolSize);
+        gatewayConnectionConfig.setIdleConnectionTimeout(idleConnectionTimeout);
+    }
+
+    public void connectionSharingAcrossClients(boolean enabled) {
+        connectionSharingAcrossClients = enabled;
     }
 
     public void slowOperationThreshold(Duration threshold) {
         slowOperationThresholdInNanos = threshold.toNanos();
     }
 
+    public void slowOperationDiagnostics(double sampleRate, int maxLength) {
+        if (sampleRate < 0 || sampleRate > 1) throw new Error("sample rate must be between 0 and 1, sampleRate=" + sampleRate);
+        if (maxLength <= 0) throw new Error("max length must be greater than 0, maxLength=" + maxLength);
+        this.diagnosticsSampleRate = sampleRate;
+        this.diagnosticsMaxLength = maxLength;
+    }
+
+    public void indexMetrics() {
+        indexMetrics = true;
+    }
+
     public void tooManyRowsReturnedThreshold(int threshold) {
         this.tooManyRowsReturnedThreshold = threshold;
     }
 
-    public <T> CosmosRepository<T> entity(Class<T> entityClass) {
+    public void requestChargeBudgetPerAction(double budget) {
+        this.requestChargeBudgetPerAction = budget;
+    }
+
+    public CosmosThrottler throttle(String entityName, double maxRequestChargePerSecond) {
+        if (throttlers.containsKey(entityName)) throw new Error("cosmos throttle is already configured, entity=" + entityName);
+        var throttler = new CosmosThrottler(entityName, maxRequestChargePerSecond);
+        throttlers.put(entityName, throttler);
+        return throttler;
+    }
+
+    public void bulkMaxConcurrency(int concurrency) {
+        if (concurrency < 1 || concurrency > 5) throw new Error("bulk concurrency must be between 1 and 5, concurrency=" + concurrency);
+        this.bulkMaxConcurrency = concurrency;
+    }
+
+    public <T> CosmosEntityImpl<T> entity(Class<T> entityClass, CosmosEntityCache<T> cache) {
         var watch = new StopWatch();
         try {
-            new CosmosClassValidator(entityClass).validateEntityClass();
-            return new CosmosEntityImpl<>(this, entityClass);
+            var validator = new CosmosClassValidator(entityClass);
+            validator.validateEntityClass();
+            var metadata = new CosmosEntityMetadata<>(entityClass, validator, cache);
+            entityNames.add(metadata.entityName);
+            return new CosmosEntityImpl<>(this, metadata);
         } finally {
             logger.info("register cosmos entity, entityClass={}, elapsed={}", entityClass.getCanonicalName(), watch.elapsed());
         }
     }
+
+    public <T> CosmosWriteBehind<T> writeBehind(CosmosEntityImpl<T> entity, Duration flushInterval, int maxSize, LogManager logManager) {
+        CosmosEntityMetadata<T> metadata = entity.metadata;
+        if (metadata.writeBehind != null) throw new Error("cosmos write behind is already configured, entity=" + metadata.entityName);
+        metadata.writeBehind = new CosmosWriteBehind<>(entity, flushInterval, maxSize, logManager);
+        return metadata.writeBehind;
+    }
+
+    public <T> CosmosAsyncRepository<T> asyncEntity(CosmosEntityImpl<T> entity) {
+        return new CosmosAsyncEntityImpl<>(this, entity.metadata);
+    }
+
+    void acquire(String entityName, boolean background) {
+        CosmosThrottler throttler = throttlers.get(entityName);
+        if (throttler != null) throttler.acquire(background);
+    }
+
+    Mono<Void> acquireAsync(String entityName) {
+        CosmosThrottler throttler = throttlers.get(entityName);
+        if (throttler == null) return Mono.empty();
+        return throttler.acquireAsync();
+    }
+
+    CosmosException throttled(String entityName, CosmosException e) {
+        if (e.getStatusCode() == HttpConstants.StatusCodes.TOO_MANY_REQUESTS) throttled(entityName, e.getRetryAfterDuration());
+        return e;
+    }
+
+    void throttled(String entityName, Duration retryAfter) {
+        CosmosThrottler throttler = throttlers.get(entityName);
+        if (throttler != null) throttler.throttled(retryAfter);
+    }
+
+    // decided before operation starts, sampled queries enable query and index metrics, diagnostics is only formatted if operation is slow
+    boolean sampleDiagnostics() {
+        return diagnosticsSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < diagnosticsSampleRate;
+    }
+
+    // enable metrics on copy, options passed by caller may be shared by other queries
+    CosmosQueryRequestOptions queryOptions(CosmosQueryRequestOptions options, boolean sampled) {
+        if (!sampled) return options;
+        CosmosQueryRequestOptions sampledOptions = ModelBridgeInternal.createQueryRequestOptions(options);
+        sampledOptions.setQueryMetricsEnabled(true);
+        if (indexMetrics) sampledOptions.setIndexMetricsEnabled(true);
+        return sampledOptions;
+    }
+
+    // interactive operation, diagnostics is null if operation is not sampled
+    void track(ActionLog actionLog, String entityName, String operation, long elapsed, int readDocs, int writeDocs, double requestCharge, Supplier<String> diagnostics) {
+        record(entityName, operation, elapsed, requestCharge);
+        consume(entityName, requestCharge, false);
+        trackAction(actionLog, entityName, operation, elapsed, readDocs, writeDocs, requestCharge, diagnostics);
+    }
+
+    // thread safe, async operations record on sdk io threads
+    void record(String entityName, String operation, long elapsed, double requestCharge) {
+        stats.record(entityName, operation, elapsed, requestCharge);
+    }
+
+    // thread safe, charge of background operation is paid by following background operations only
+    void consume(String entityName, double requestCharge, boolean background) {
+        CosmosThrottler throttler = throttlers.get(entityName);
+        if (throttler != null) throttler.consume(requestCharge, background);
+    }
+
+    // called on sdk io thread when async operation completes
+    void trackAsync(ActionLog actionLog, Consumer<ActionLog> track) {
+        synchronized (asyncOperations) {
+            asyncOperations.computeIfAbsent(actionLog, key -> new ArrayList<>()).add(track);
+        }
+    }
+
+    // called on action thread, track async operations completed since last call
+    void trackAsyncOperations() {
+        ActionLog actionLog = LogManager.CURRENT_ACTION_LOG.get();
+        if (actionLog == null) return;
+        List<Consumer<ActionLog>> tracks;
+        synchronized (asyncOperations) {
+            tracks = asyncOperations.remove(actionLog);
+        }
+        if (tracks != null) tracks.forEach(track -> track.accept(actionLog));
+    }
+
+    // must be called on action thread, action log is not thread safe and warnings are attached to current action
+    void trackAction(ActionLog actionLog, String entityName, String operation, long elapsed, int readDocs, int writeDocs, double requestCharge, Supplier<String> diagnostics) {
+        if (actionLog != null) trackAsyncOperations();
+        if (actionLog != null) actionLog.track("cosmos", elapsed, readDocs, writeDocs);
+        checkRequestCharge(actionLog, requestCharge);
+        checkSlowOperation(entityName, operation, elapsed, diagnostics);
+    }
+
+    private void checkRequestCharge(ActionLog actionLog, double requestCharge) {
+        if (actionLog == null) return;
+        actionLog.stats("cosmos_request_charge", requestCharge);
+        ActionRequestCharge charge = actionRequestCharge.get();
+        if (charge == null || !charge.actionId.equals(actionLog.id)) {
+            charge = new ActionRequestCharge(actionLog.id);
+            actionRequestCharge.set(charge);
+        }
+        double previous = charge.total;
+        charge.total += requestCharge;
+        // only warn once per action when total crossing budget
+        if (charge.total > requestChargeBudgetPerAction && previous <= requestChargeBudgetPerAction)
+            logger.warn(Markers.errorCode("HIGH_COSMOSDB_REQUEST_CHARGE"), "cosmosDB request charge of action exceeded budget, requestCharge={}, budget={}", charge.total, requestChargeBudgetPerAction);
+    }
+
+    void checkTooManyRowsReturned(int size) {
+        if (size > tooManyRowsReturnedThreshold)
+            logger.warn(Markers.errorCode("TOO_MANY_ROWS_RETURNED"), "too many rows returned, returnedRows={}", size);
+    }
+
+    private void checkSlowOperation(String entityName, String operation, long elapsed, Supplier<String> diagnostics) {
+        if (elapsed <= slowOperationThresholdInNanos) return;
+        if (diagnostics == null) {
+            logger.warn(Markers.errorCode("SLOW_COSMOSDB"), "slow cosmosDB query, elapsed={}", elapsed);
+        } else {
+            logger.warn(Markers.errorCode("SLOW_COSMOSDB"), "slow cosmosDB query, entity={}, operation={}, elapsed={}, diagnostics={}",
+                entityName, operation, elapsed, truncate(diagnostics.get()));
+        }
+    }
+
+    private String truncate(String diagnostics) {
+        if (diagnostics == null || diagnostics.length() <= diagnosticsMaxLength) return diagnostics;
+        return diagnostics.substring(0, diagnosticsMaxLength) + "...(truncated)";
+    }
+
+    private static final class ActionRequestCharge {
+        final String actionId;
+        double total;
+
+        ActionRequestCharge(String actionId) {
+            this.actionId = actionId;
+        }
+    }
 }
@@ -0,0 +1,215 @@
+package core.ext.cosmos.impl;
+
+import com.azure.cosmos.models.CompositePath;
+import com.azure.cosmos.models.CompositePathSortOrder;
+import com.azure.cosmos.models.ExcludedPath;
+import com.azure.cosmos.models.IncludedPath;
+import com.azure.cosmos.models.IndexingMode;
+import com.azure.cosmos.models.IndexingPolicy;
+import com.azure.cosmos.models.SpatialSpec;
+import com.azure.cosmos.models.SpatialType;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import core.ext.cosmos.CompositeIndex;
+import core.ext.cosmos.Id;
+import core.ext.cosmos.Indexed;
+import core.ext.cosmos.NotIndexed;
+import core.ext.cosmos.SpatialIndex;
+import core.framework.internal.reflect.Fields;
+import core.framework.internal.reflect.GenericTypes;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Type;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static core.framework.util.Strings.format;
+
+/**
+ * build indexing policy from @Indexed, @NotIndexed, @CompositeIndex and @SpatialIndex of entity fields,
+ * with @Indexed only listed paths are indexed, otherwise all paths except @NotIndexed ones are indexed
+ *
+ * @author Neal
+ */
+final class CosmosIndexingPolicyBuilder {
+    static final String ALL_PATHS = "/*";
+    static final String ETAG_PATH = "/\"_etag\"/?";     // excluded by cosmos by default
+
+    private final Map<Class<?>, List<Field>> classFields;
+    private final Set<String> includedPaths = new LinkedHashSet<>();
+    private final Set<String> excludedPaths = new LinkedHashSet<>();
+    private final Map<String, TreeMap<Integer, CompositePath>> compositeIndexes = new LinkedHashMap<>();
+    private final List<SpatialSpec> spatialIndexes = new ArrayList<>();
+    private final Set<Class<?>> visiting = new HashSet<>();
+
+    CosmosIndexingPolicyBuilder(Map<Class<?>, List<Field>> classFields) {
+        this.classFields = classFields;
+    }
+
+    IndexingPolicy build(Class<?> entityClass) {
+        visit(entityClass, "");
+        if (!includedPaths.isEmpty() && !excludedPaths.isEmpty())
+            throw new Error(format("cosmos entity class must not mix @Indexed and @NotIndexed, class={}, indexed={}, notIndexed={}", entityClass.getCanonicalName(), includedPaths, excludedPaths));
+
+        var policy = new IndexingPolicy();
+        policy.setIndexingMode(IndexingMode.CONSISTENT);
+        policy.setAutomatic(true);
+        List<ExcludedPath> excluded = new ArrayList<>();
+        if (includedPaths.isEmpty()) {
+            policy.setIncludedPaths(List.of(new IncludedPath(ALL_PATHS)));
+            for (String path : excludedPaths) {
+                excluded.add(new ExcludedPath(path));
+            }
+        } else {
+            List<IncludedPath> included = new ArrayList<>(includedPaths.size());
+            for (String path : includedPaths) {
+                included.add(new IncludedPath(path));
+            }
+            policy.setIncludedPaths(included);
+            excluded.add(new ExcludedPath(ALL_PATHS));
+        }
+        excluded.add(new ExcludedPath(ETAG_PATH));
+        policy.setExcludedPaths(excluded);
+
+        List<List<CompositePath>> composites = new ArrayList<>(compositeIndexes.size());
+        for (Map.Entry<String, TreeMap<Integer, CompositePath>> entry : compositeIndexes.entrySet()) {
+            if (entry.getValue().size() < 2)
+                throw new Error(format("cosmos composite index must have at least 2 fields, class={}, name={}", entityClass.getCanonicalName(), entry.getKey()));
+            composites.add(new ArrayList<>(entry.getValue().values()));
+        }
+        policy.setCompositeIndexes(composites);
+        policy.setSpatialIndexes(spatialIndexes);
+        return policy;
+    }
+
+    // path is null under map value, where property path is not addressable
+    private void visit(Class<?> objectClass, String path) {
+        if (!visiting.add(objectClass)) return;     // recursive child class, annotations are resolved on first path
+        for (Field field : classFields.getOrDefault(objectClass, List.of())) {
+            String fieldPath = path == null ? null : path + "/" + propertyName(field);
+            Type type = field.getGenericType();
+            boolean list = GenericTypes.isList(type);
+            boolean map = GenericTypes.isMap(type);
+            Class<?> valueClass = list ? GenericTypes.listValueClass(type) : map ? GenericTypes.mapValueClass(type) : GenericTypes.rawClass(type);
+            boolean scalar = !list && !map && isValueClass(valueClass);
+
+            visitAnnotations(field, fieldPath, scalar);
+            if (!isValueClass(valueClass)) {
+                visit(valueClass, map || fieldPath == null ? null : list ? fieldPath + "/[]" : fieldPath);
+            }
+        }
+        visiting.remove(objectClass);
+    }
+
+    private void visitAnnotations(Field field, String path, boolean scalar) {
+        Indexed indexed = field.getDeclaredAnnotation(Indexed.class);
+        NotIndexed notIndexed = field.getDeclaredAnnotation(NotIndexed.class);
+        CompositeIndex[] compositeIndexes = field.getDeclaredAnnotationsByType(CompositeIndex.class);
+        SpatialIndex spatialIndex = field.getDeclaredAnnotation(SpatialIndex.class);
+        if (indexed == null && notIndexed == null && compositeIndexes.length == 0 && spatialIndex == null) return;
+
+        if (path == null)
+            throw new Error(format("cosmos index annotation must not be used under map value, field={}", Fields.path(field)));
+        if (indexed != null && notIndexed != null)
+            throw new Error(format("cosmos field must not have both @Indexed and @NotIndexed, field={}", Fields.path(field)));
+        String indexPath = scalar ? path + "/?" : path + ALL_PATHS;
+        if (indexed != null) includedPaths.add(indexPath);
+        if (notIndexed != null) excludedPaths.add(indexPath);
+
+        for (CompositeIndex compositeIndex : compositeIndexes) {
+            if (!scalar)
+                throw new Error(format("cosmos composite index field must be value type, field={}", Fields.path(field)));
+            var compositePath = new CompositePath().setPath(path).setOrder(compositeIndex.descending() ? CompositePathSortOrder.DESCENDING : CompositePathSortOrder.ASCENDING);
+            CompositePath previous = this.compositeIndexes.computeIfAbsent(compositeIndex.name(), key -> new TreeMap<>()).putIfAbsent(compositeIndex.order(), compositePath);
+            if (previous != null)
+                throw new Error(format("cosmos composite index order must be unique, field={}, name={}, order={}", Fields.path(field), compositeIndex.name(), compositeIndex.order()));
+        }
+
+        if (spatialIndex != null) {
+            if (scalar)
+                throw new Error(format("cosmos spatial index field must be GeoJSON object, field={}", Fields.path(field)));
+            if (spatialIndex.types().length == 0)
+                throw new Error(format("cosmos spatial index must have types, field={}", Fields.path(field)));
+            spatialIndexes.add(new SpatialSpec().setPath(path + ALL_PATHS).setSpatialTypes(Arrays.asList(spatialIndex.types())));
+        }
+    }
+
+    private boolean isValueClass(Class<?> valueClass) {
+        return String.class.equals(valueClass) || Boolean.class.equals(valueClass) || Integer.class.equals(valueClass) || Long.class.equals(valueClass)
+            || Double.class.equals(valueClass) || ZonedDateTime.class.equals(valueClass) || valueClass.isEnum();
+    }
+
+    private String propertyName(Field field) {
+        JsonProperty property = field.getDeclaredAnnotation(JsonProperty.class);
+        if (property != null) return property.value();
+        if (field.isAnnotationPresent(Id.class)) return "id";
+        throw new Error(format("cosmos entity field must have @JsonProperty, field={}", field));
+    }
+
+    // changes to turn current into target, in form of "+included /status/?" or "-excluded /*", empty if same
+    static List<String> diff(IndexingPolicy current, IndexingPolicy target) {
+        List<String> changes = new ArrayList<>();
+        diff(changes, "included", includedPaths(current), includedPaths(target));
+        diff(changes, "excluded", excludedPaths(current), excludedPaths(target));
+        diff(changes, "composite", compositeIndexes(current), compositeIndexes(target));
+        diff(changes, "spatial", spatialIndexes(current), spatialIndexes(target));
+        return changes;
+    }
+
+    private static void diff(List<String> changes, String kind, Set<String> current, Set<String> target) {
+        for (String path : current) {
+            if (!target.contains(path)) changes.add("-" + kind + " " + path);
+        }
+        for (String path : target) {
+            if (!current.contains(path)) changes.add("+" + kind + " " + path);
+        }
+    }
+
+    private static Set<String> includedPaths(IndexingPolicy policy) {
+        Set<String> paths = new LinkedHashSet<>();
+        for (IncludedPath path : policy.getIncludedPaths()) {
+            paths.add(path.getPath());
+        }
+        return paths;
+    }
+
+    private static Set<String> excludedPaths(IndexingPolicy policy) {
+        Set<String> paths = new LinkedHashSet<>();
+        for (ExcludedPath path : policy.getExcludedPaths()) {
+            paths.add(path.getPath());
+        }
+        return paths;
+    }
+
+    private static Set<String> compositeIndexes(IndexingPolicy policy) {
+        Set<String> indexes = new LinkedHashSet<>();
+        for (List<CompositePath> compositePaths : policy.getCompositeIndexes()) {
+            List<String> paths = new ArrayList<>(compositePaths.size());
+            for (CompositePath path : compositePaths) {
+                paths.add(path.getPath() + " " + (path.getOrder() == CompositePathSortOrder.DESCENDING ? "desc" : "asc"));
+            }
+            indexes.add("(" + String.join(", ", paths) + ")");
+        }
+        return indexes;
+    }
+
+    private static Set<String> spatialIndexes(IndexingPolicy policy) {
+        Set<String> indexes = new LinkedHashSet<>();
+        for (SpatialSpec spec : policy.getSpatialIndexes()) {
+            Set<String> types = new TreeSet<>();
+            for (SpatialType type : spec.getSpatialTypes()) {
+                types.add(type.toString());
+            }
+            indexes.add(spec.getPath() + " " + types);
+        }
+        return indexes;
+    }
+}
@@ -0,0 +1,64 @@
+package core.ext.cosmos.impl;
+
+import com.azure.cosmos.models.SqlQuerySpec;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * rewrite SELECT * FROM c of view class query to SELECT c.a, c.b FROM c, only top level @JsonProperty fields of view class are selected,
+ * query is unchanged if it's not plain select all or any property name can't be used as identifier
+ *
+ * @author Neal
+ */
+final class CosmosProjection {
+    private static final Pattern SELECT_ALL = Pattern.compile("^\\s*SELECT\\s+(?<top>TOP\\s+\\S+\\s+)?\\*\\s+(?<from>FROM\\s+(?<container>\\w+)(?:\\s+AS)?(?:\\s+(?!(?:WHERE|ORDER|JOIN|OFFSET|GROUP)\\b)(?<alias>\\w+))?)",
+        Pattern.CASE_INSENSITIVE);
+    private static final Pattern JOIN = Pattern.compile("\\bJOIN\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final Set<String> KEYWORDS = Set.of("and", "array", "as", "asc", "between", "by", "desc", "distinct", "escape", "exists", "false", "from", "group",
+        "in", "join", "like", "limit", "not", "null", "offset", "or", "order", "select", "top", "true", "udf", "undefined", "value", "where");
+    private static final String[] NOT_PROJECTABLE = new String[0];
+
+    private final Map<Class<?>, String[]> properties = new ConcurrentHashMap<>();
+
+    SqlQuerySpec project(SqlQuerySpec query, Class<?> viewClass) {
+        String[] properties = this.properties.computeIfAbsent(viewClass, this::properties);
+        if (properties.length == 0) return query;
+        String text = query.getQueryText();
+        Matcher matcher = SELECT_ALL.matcher(text);
+        if (!matcher.find() || JOIN.matcher(text).find()) return query;
+        String alias = matcher.group("alias") == null ? matcher.group("container") : matcher.group("alias");
+        var builder = new StringBuilder(text.length() + properties.length * 16).append("SELECT ");
+        String top = matcher.group("top");
+        if (top != null) builder.append(top);
+        for (int i = 0; i < properties.length; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(alias).append('.').append(properties[i]);
+        }
+        builder.append(' ').append(text, matcher.start("from"), text.length());
+        return new SqlQuerySpec(builder.toString(), query.getParameters());
+    }
+
+    // empty if any field can't be projected
+    private String[] properties(Class<?> viewClass) {
+        List<String> properties = new ArrayList<>();
+        for (Field field : viewClass.getFields()) {
+            if (Modifier.isStatic(field.getModifiers())) continue;
+            JsonProperty property = field.getDeclaredAnnotation(JsonProperty.class);
+            String name = property == null ? field.getName() : property.value();
+            if (!IDENTIFIER.matcher(name).matches() || KEYWORDS.contains(name.toLowerCase(Locale.ROOT))) return NOT_PROJECTABLE;
+            properties.add(name);
+        }
+        return properties.toArray(NOT_PROJECTABLE);
+    }
+}
@@ -0,0 +1,76 @@
+package core.ext.cosmos.impl;
+
+import com.azure.cosmos.CosmosDiagnostics;
+import com.azure.cosmos.models.FeedResponse;
+import core.framework.util.StopWatch;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * pull one page at a time, only the current page is held in memory, raw results (e.g. ObjectNode) are decoded on demand
+ *
+ * @author Neal
+ */
+final class CosmosQueryIterator<R, V> implements Iterator<V> {
+    private final Iterator<FeedResponse<R>> pages;
+    private final Function<R, V> decoder;
+    private final boolean sampled;
+    private Iterator<R> elements = Collections.emptyIterator();
+    private CosmosDiagnostics firstPageDiagnostics;     // only kept if sampled, large scan must not hold diagnostics of every page
+    private String indexMetrics;
+    private int pages;
+    double requestCharge;
+    int returnedDocs;
+    long elapsed;
+
+    CosmosQueryIterator(Iterable<FeedResponse<R>> pages, Function<R, V> decoder, boolean sampled) {
+        this.pages = pages.iterator();
+        this.decoder = decoder;
+        this.sampled = sampled;
+    }
+
+    // index metrics is only returned with first page
+    static String diagnostics(int pages, String indexMetrics, CosmosDiagnostics firstPage) {
+        return "pages=" + pages + ", indexMetrics=" + indexMetrics + ", firstPage=" + firstPage;
+    }
+
+    Supplier<String> diagnostics() {
+        if (!sampled || firstPageDiagnostics == null) return null;
+        int pages = this.pages;
+        String indexMetrics = this.indexMetrics;
+        CosmosDiagnostics firstPage = firstPageDiagnostics;
+        return () -> diagnostics(pages, indexMetrics, firstPage);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!elements.hasNext()) {
+            var watch = new StopWatch();
+            try {
+                if (!pages.hasNext()) return false;
+                FeedResponse<R> page = pages.next();
+                requestCharge += page.getRequestCharge();
+                pages++;
+                if (sampled && firstPageDiagnostics == null) {
+                    indexMetrics = page.getIndexMetrics();
+                    firstPageDiagnostics = page.getCosmosDiagnostics();
+                }
+                elements = page.getElements().iterator();
+            } finally {
+                elapsed += watch.elapsed();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public V next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        returnedDocs++;
+        return decoder.apply(elements.next());
+    }
+}
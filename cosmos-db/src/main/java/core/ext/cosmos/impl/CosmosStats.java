@@ -0,0 +1,77 @@
+package core.ext.cosmos.impl;
+
+import core.framework.internal.stat.Metrics;
+import core.framework.internal.stat.Stats;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * request charge and elapsed per entity and operation, reset on every collect
+ *
+ * @author Neal
+ */
+public final class CosmosStats implements Metrics {
+    private final Map<String, OperationStats> operations = new ConcurrentHashMap<>();
+
+    void record(String entityName, String operation, long elapsed, double requestCharge) {
+        operations.computeIfAbsent(entityName + ':' + operation, key -> new OperationStats(statPrefix(entityName, operation)))
+            .record(elapsed, requestCharge);
+    }
+
+    @Override
+    public void collect(Stats stats) {
+        for (OperationStats operation : operations.values()) {
+            operation.collect(stats);
+        }
+    }
+
+    // e.g. cosmos_items_find_one
+    String statPrefix(String entityName, String operation) {
+        var builder = new StringBuilder("cosmos_").append(entityName).append('_');
+        for (int i = 0; i < operation.length(); i++) {
+            char ch = operation.charAt(i);
+            if (Character.isUpperCase(ch)) {
+                builder.append('_').append(Character.toLowerCase(ch));
+            } else {
+                builder.append(ch);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static final class OperationStats {
+        private final String prefix;
+        private int count;
+        private double requestCharge;
+        private double maxRequestCharge;
+        private long elapsed;
+        private long maxElapsed;
+
+        OperationStats(String prefix) {
+            this.prefix = prefix;
+        }
+
+        synchronized void record(long elapsed, double requestCharge) {
+            count++;
+            this.requestCharge += requestCharge;
+            if (requestCharge > maxRequestCharge) maxRequestCharge = requestCharge;
+            this.elapsed += elapsed;
+            if (elapsed > maxElapsed) maxElapsed = elapsed;
+        }
+
+        synchronized void collect(Stats stats) {
+            if (count == 0) return;
+            stats.put(prefix + "_count", count);
+            stats.put(prefix + "_request_charge", requestCharge);
+            stats.put(prefix + "_request_charge_max", maxRequestCharge);
+            stats.put(prefix + "_elapsed_avg", (double) elapsed / count);
+            stats.put(prefix + "_elapsed_max", maxElapsed);
+            count = 0;
+            requestCharge = 0;
+            maxRequestCharge = 0;
+            elapsed = 0;
+            maxElapsed = 0;
+        }
+    }
+}
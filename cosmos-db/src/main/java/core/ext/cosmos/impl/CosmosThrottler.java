@@ -0,0 +1,144 @@
+package core.ext.cosmos.impl;
+
+import core.framework.internal.stat.Metrics;
+import core.framework.internal.stat.Stats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * adaptive request charge (RU) token bucket per container,
+ * rate is halved on 429 (once per retry-after window) and recovers gradually, background callers wait while bucket is below half, within retry-after or in debt,
+ * so they slow down before interactive callers, charge of background operations is kept as debt paid from tokens above half by later background callers,
+ * interactive callers never pay background debt and wait at most MAX_INTERACTIVE_WAIT then proceed
+ *
+ * @author Neal
+ */
+public final class CosmosThrottler implements Metrics {
+    private static final long MAX_WAIT_IN_NANOS = Duration.ofSeconds(1).toNanos();
+    private static final long MAX_INTERACTIVE_WAIT_IN_NANOS = Duration.ofMillis(500).toNanos();
+    private final Logger logger = LoggerFactory.getLogger(CosmosThrottler.class);
+    private final String entityName;
+    private final double maxRate;
+    private final double minRate;
+    private double rate;
+    private double tokens;
+    private double debt;
+    private long lastRefillTime;
+    private long blockedUntil;
+    private long throttledCount;
+    private long waitTimeInNanos;
+
+    public CosmosThrottler(String entityName, double maxRequestChargePerSecond) {
+        if (maxRequestChargePerSecond <= 0) throw new Error("max request charge per second must be greater than 0, value=" + maxRequestChargePerSecond);
+        this.entityName = entityName;
+        this.maxRate = maxRequestChargePerSecond;
+        this.minRate = maxRequestChargePerSecond * 0.05;
+        this.rate = maxRequestChargePerSecond;
+        this.tokens = maxRequestChargePerSecond;
+        this.lastRefillTime = System.nanoTime();
+        this.blockedUntil = lastRefillTime;     // nanoTime can be negative, must compare relative to real time
+    }
+
+    void acquire(boolean background) {
+        long waitTime = waitTime(background, System.nanoTime());
+        if (waitTime <= 0) return;
+        long start = System.nanoTime();
+        do {
+            if (!background) {
+                long remaining = MAX_INTERACTIVE_WAIT_IN_NANOS - (System.nanoTime() - start);
+                if (remaining <= 0) {
+                    logger.debug("interactive wait reached max time, proceed, entity={}", entityName);
+                    break;
+                }
+                waitTime = Math.min(waitTime, remaining);
+            }
+            try {
+                Thread.sleep(waitTime / 1_000_000, (int) (waitTime % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new Error(e);
+            }
+            waitTime = waitTime(background, System.nanoTime());
+        } while (waitTime > 0);
+        waited(System.nanoTime() - start);
+    }
+
+    // non blocking interactive acquire for async operations, waits on reactor timer instead of sdk io threads
+    Mono<Void> acquireAsync() {
+        return Mono.defer(() -> acquireAsync(System.nanoTime()));
+    }
+
+    private Mono<Void> acquireAsync(long start) {
+        long now = System.nanoTime();
+        long waitTime = Math.min(waitTime(false, now), MAX_INTERACTIVE_WAIT_IN_NANOS - (now - start));
+        if (waitTime <= 0) {
+            if (now != start) waited(now - start);
+            return Mono.empty();
+        }
+        return Mono.delay(Duration.ofNanos(waitTime)).then(Mono.defer(() -> acquireAsync(start)));
+    }
+
+    private synchronized void waited(long waitTime) {
+        waitTimeInNanos += waitTime;
+    }
+
+    synchronized void consume(double requestCharge, boolean background) {
+        refill(System.nanoTime());
+        if (background) debt += requestCharge;
+        else tokens -= requestCharge;
+    }
+
+    synchronized void throttled(Duration retryAfter) {
+        long now = System.nanoTime();
+        refill(now);
+        throttledCount++;
+        if (now - blockedUntil > 0) rate = Math.max(minRate, rate / 2);     // concurrent requests throttled within same retry-after window only decrease once
+        if (tokens > 0) tokens = 0;
+        long retryAfterInNanos = retryAfter == null ? 0 : retryAfter.toNanos();
+        blockedUntil = Math.max(blockedUntil, now + retryAfterInNanos);
+        logger.debug("cosmosDB throttled, entity={}, rate={}, retryAfter={}", entityName, rate, retryAfter);
+    }
+
+    // return nanos to wait, 0 if acquired
+    synchronized long waitTime(boolean background, long now) {
+        refill(now);
+        if (background) {
+            double reserve = rate / 2;
+            if (debt > 0 && tokens > reserve) {     // pay debt only from tokens above reserve, so interactive callers keep at least half
+                double paid = Math.min(debt, tokens - reserve);
+                tokens -= paid;
+                debt -= paid;
+            }
+            long blocked = blockedUntil - now;
+            if (blocked <= 0 && debt <= 0 && tokens > reserve) return 0;
+            return Math.min(MAX_WAIT_IN_NANOS, Math.max(blocked, nanosToFill(reserve + debt)));
+        }
+        if (tokens > 0) return 0;
+        return Math.min(MAX_WAIT_IN_NANOS, nanosToFill(0));
+    }
+
+    private long nanosToFill(double target) {
+        return Math.max(1, (long) ((target - tokens) / rate * 1_000_000_000));
+    }
+
+    private void refill(long now) {
+        double seconds = (now - lastRefillTime) / 1_000_000_000d;
+        if (seconds <= 0) return;
+        lastRefillTime = now;
+        if (now - blockedUntil > 0) rate = Math.min(maxRate, rate + maxRate * 0.05 * seconds);   // recover 5% of max rate per second after retry-after
+        tokens = Math.min(rate, tokens + rate * seconds);
+    }
+
+    @Override
+    public synchronized void collect(Stats stats) {
+        String prefix = "cosmos_throttle_" + entityName;
+        stats.put(prefix + "_count", throttledCount);
+        stats.put(prefix + "_wait_time", waitTimeInNanos);
+        stats.put(prefix + "_rate", rate);
+        throttledCount = 0;
+        waitTimeInNanos = 0;
+    }
+}
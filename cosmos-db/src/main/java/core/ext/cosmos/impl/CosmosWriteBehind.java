@@ -0,0 +1,251 @@
+package core.ext.cosmos.impl;
+
+import com.azure.cosmos.implementation.HttpConstants;
+import com.azure.cosmos.models.PartitionKey;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import core.ext.cosmos.CosmosBulkResult;
+import core.framework.internal.log.ActionLog;
+import core.framework.internal.log.LogManager;
+import core.framework.internal.stat.Metrics;
+import core.framework.internal.stat.Stats;
+import core.framework.log.Markers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * buffer upserts per entity and write them with bulk upsert on background thread,
+ * repeated upserts of same id before flush are collapsed to last one, upsert blocks when buffer is full,
+ * in-flight items count against max size, so failed items re-queued after flush never exceed it
+ *
+ * @author Neal
+ */
+public final class CosmosWriteBehind<T> implements Metrics {
+    private static final long MAX_WAIT_IN_NANOS = Duration.ofSeconds(10).toNanos();
+    private static final int SHUTDOWN_FLUSH_ATTEMPTS = 3;
+    private final Logger logger = LoggerFactory.getLogger(CosmosWriteBehind.class);
+    private final CosmosEntityImpl<T> entity;
+    private final String entityName;
+    private final Duration flushInterval;
+    private final int maxSize;
+    private final LogManager logManager;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();     // signaled when pending is swapped out or flush completed
+    private final Set<String> removedWhileFlushing = new HashSet<>();     // failed items of these keys must not be retried, as they are deleted or overwritten directly
+    private Map<String, Item> pending = new LinkedHashMap<>();
+    private Map<String, Item> flushing = Map.of();
+    private ScheduledExecutorService scheduler;
+    private long bufferedDocs;
+    private long coalescedDocs;
+    private long flushedDocs;
+    private long waitTimeInNanos;
+
+    CosmosWriteBehind(CosmosEntityImpl<T> entity, Duration flushInterval, int maxSize, LogManager logManager) {
+        if (flushInterval == null || flushInterval.isNegative() || flushInterval.isZero()) throw new Error("flush interval must be greater than 0, flushInterval=" + flushInterval);
+        if (maxSize <= 0) throw new Error("max buffer size must be greater than 0, maxSize=" + maxSize);
+        this.entity = entity;
+        this.entityName = entity.metadata.entityName;
+        this.flushInterval = flushInterval;
+        this.maxSize = maxSize;
+        this.logManager = logManager;
+    }
+
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "cosmos-write-behind-" + entityName));
+        long interval = flushInterval.toNanos();
+        scheduler.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.NANOSECONDS);
+        logger.info("write behind started, entity={}, flushInterval={}, maxSize={}", entityName, flushInterval, maxSize);
+    }
+
+    // flush remaining items on caller thread after scheduler stopped, retry failed items a few times, then log keys lost
+    public void shutdown(long timeoutInMs) throws InterruptedException {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            boolean terminated = scheduler.awaitTermination(timeoutInMs, TimeUnit.MILLISECONDS);
+            if (!terminated) logger.warn("failed to terminate write behind scheduler, entity={}", entityName);
+        }
+        logger.info("flush write behind, entity={}", entityName);
+        for (int attempt = 1; attempt <= SHUTDOWN_FLUSH_ATTEMPTS; attempt++) {
+            flush();
+            if (pendingKeys().isEmpty()) return;
+            if (attempt < SHUTDOWN_FLUSH_ATTEMPTS) Thread.sleep(1000L * attempt);
+        }
+        logger.warn(Markers.errorCode("COSMOSDB_WRITE_BEHIND_LOST"), "failed to flush write behind before shutdown, entity={}, keys={}", entityName, pendingKeys());
+    }
+
+    void put(String key, String id, ObjectNode node, PartitionKey partitionKey) {
+        var item = new Item(key, id, node, partitionKey);
+        lock.lock();
+        try {
+            bufferedDocs++;
+            if (pending.containsKey(key)) {
+                pending.put(key, item);     // keep position of first write, so hot key doesn't starve
+                coalescedDocs++;
+                return;
+            }
+            awaitCapacity();
+            pending.put(key, item);
+            if (pending.size() == maxSize) scheduleFlush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // return buffered or flushing document, so get() reads own writes
+    ObjectNode get(String key) {
+        lock.lock();
+        try {
+            Item item = pending.get(key);
+            if (item == null) item = flushing.get(key);
+            return item == null ? null : item.node;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called before delete or direct write of same key, wait in-flight flush to prevent it overwriting later change
+    void remove(String key) {
+        lock.lock();
+        try {
+            pending.remove(key);
+            if (flushing.containsKey(key)) removedWhileFlushing.add(key);
+            long remaining = MAX_WAIT_IN_NANOS;
+            while (flushing.containsKey(key) && remaining > 0) {
+                remaining = changed.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Error(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void flush() {
+        List<Item> items;
+        lock.lock();
+        try {
+            if (pending.isEmpty()) return;
+            flushing = pending;
+            pending = new LinkedHashMap<>();
+            items = new ArrayList<>(flushing.values());
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        List<CosmosBulkResult> results = null;
+        ActionLog actionLog = logManager.begin("=== cosmos write behind flush begin ===", null);
+        try {
+            actionLog.action("cosmos:" + entityName + ":writeBehind");
+            actionLog.context("flushed_docs", items.size());
+            results = entity.flush(items);
+        } catch (Throwable e) {
+            logManager.logError(e);
+        } finally {
+            logManager.end("=== cosmos write behind flush end ===");
+            complete(items, results);
+        }
+    }
+
+    // retry throttled, timeout or server error later unless same key is written again or removed, other failures are logged by bulk
+    private void complete(List<Item> items, List<CosmosBulkResult> results) {
+        lock.lock();
+        try {
+            for (int i = 0; i < items.size(); i++) {
+                Item item = items.get(i);
+                CosmosBulkResult result = results == null ? null : results.get(i);
+                if (result == null || !result.success && retryable(result.statusCode)) {
+                    if (!removedWhileFlushing.contains(item.key)) pending.putIfAbsent(item.key, item);
+                } else {
+                    flushedDocs++;
+                }
+            }
+            flushing = Map.of();
+            removedWhileFlushing.clear();
+            if (pending.size() >= maxSize) scheduleFlush();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<String> pendingKeys() {
+        lock.lock();
+        try {
+            return new ArrayList<>(pending.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean retryable(int statusCode) {
+        return statusCode == 0 || statusCode == HttpConstants.StatusCodes.TOO_MANY_REQUESTS || statusCode == HttpConstants.StatusCodes.REQUEST_TIMEOUT || statusCode >= 500;
+    }
+
+    private void scheduleFlush() {
+        if (scheduler != null && !scheduler.isShutdown()) scheduler.execute(this::flush);
+    }
+
+    private void awaitCapacity() {
+        if (pending.size() + flushing.size() < maxSize) return;
+        long start = System.nanoTime();
+        try {
+            long remaining = MAX_WAIT_IN_NANOS;
+            while (pending.size() + flushing.size() >= maxSize) {
+                if (remaining <= 0) throw new Error("write behind buffer is full, entity=" + entityName + ", maxSize=" + maxSize);
+                remaining = changed.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Error(e);
+        } finally {
+            waitTimeInNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void collect(Stats stats) {
+        lock.lock();
+        try {
+            String prefix = "cosmos_write_behind_" + entityName;
+            stats.put(prefix + "_size", pending.size());
+            stats.put(prefix + "_buffered_docs", bufferedDocs);
+            stats.put(prefix + "_coalesced_docs", coalescedDocs);
+            stats.put(prefix + "_flushed_docs", flushedDocs);
+            stats.put(prefix + "_wait_time", waitTimeInNanos);
+            bufferedDocs = 0;
+            coalescedDocs = 0;
+            flushedDocs = 0;
+            waitTimeInNanos = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static final class Item {
+        final String key;
+        final String id;
+        final ObjectNode node;
+        final PartitionKey partitionKey;
+
+        Item(String key, String id, ObjectNode node, PartitionKey partitionKey) {
+            this.key = key;
+            this.id = id;
+            this.node = node;
+            this.partitionKey = partitionKey;
+        }
+    }
+}
@@ -3,17 +3,25 @@ package core.ext.cosmos.module;
 import com.azure.cosmos.implementation.Utils;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import core.ext.cosmos.ChangeFeedHandler;
 import core.ext.cosmos.Cosmos;
+import core.ext.cosmos.CosmosAsyncRepository;
 import core.ext.cosmos.CosmosRepository;
 import core.ext.cosmos.Entity;
+import core.ext.cosmos.impl.CosmosChangeFeed;
+import core.ext.cosmos.impl.CosmosEntityCache;
+import core.ext.cosmos.impl.CosmosEntityImpl;
 import core.ext.cosmos.impl.CosmosImpl;
+import core.ext.cosmos.impl.CosmosWriteBehind;
 import core.framework.internal.module.Config;
 import core.framework.internal.module.ModuleContext;
 import core.framework.internal.module.ShutdownHook;
+import core.framework.util.Maps;
 import core.framework.util.Types;
 
 import java.time.Duration;
 import java.util.List;
+import java.util.Map;
 
 import static core.framework.util.Strings.format;
 
@@ -29,8 +37,11 @@ public class CosmosConfig extends Config {
     private String key;
     private String databaseId;
     private List<String> preferredRegions;
+    private boolean hedgeReads;
 
     private CosmosImpl cosmos;
+    private CosmosChangeFeed changeFeed;
+    private final Map<Class<?>, CosmosEntityImpl<?>> entities = Maps.newHashMap();
 
     @Override
     protected void initialize(ModuleContext context, String name) {
@@ -38,14 +49,14 @@ public class CosmosConfig extends Config {
         this.name = name;
 
         cosmos = new CosmosImpl();
-        //enable cosmos jsr310
-        //todo custom objectMapper
+        // entity classes are encoded/decoded by CosmosEntityCodec, sdk object mapper is only used for view classes, enable jsr310 for them
         ObjectMapper objectMapper = Utils.getSimpleObjectMapper();
         objectMapper.registerModule(new ZonedDateTimeModule());
         objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
 
         this.context.startupHook.add(cosmos::initialize);
         this.context.shutdownHook.add(ShutdownHook.STAGE_7, timeout -> cosmos.close());
+        context.collector.metrics.add(cosmos.stats);
         context.beanFactory.bind(Cosmos.class, name, cosmos);
     }
 
@@ -55,8 +66,9 @@ public class CosmosConfig extends Config {
         if (key == null) throw new Error("Key not configured");
         if (databaseId == null) throw new Error("DatabaseId not configured");
         if (preferredRegions == null) throw new Error("PreferredRegions not configured");
-        if (!entityAdded)
-            throw new Error("cosmos is configured but no entity added, please remove unnecessary config, name=" + name);
+        if (hedgeReads && preferredRegions.size() < 2) throw new Error("hedged read requires at least 2 preferred regions, preferredRegions=" + preferredRegions);
+        if (!entityAdded && changeFeed == null)
+            throw new Error("cosmos is configured but no entity or change feed added, please remove unnecessary config, name=" + name);
     }
 
     public void endpoint(String endpoint) {
@@ -89,18 +101,147 @@ public class CosmosConfig extends Config {
         cosmos.preferredRegions(preferredRegions);
     }
 
+    // connect to backend replicas over TCP instead of routing every request through gateway, gateway is still used for metadata requests,
+    // containers are warmed up on startup (address resolution and connections) only in direct mode
+    public void directMode() {
+        cosmos.directMode();
+    }
+
+    // enables direct mode, pool size per backend node and concurrent requests multiplexed on one connection
+    public void directConnection(int maxConnectionsPerEndpoint, int maxRequestsPerConnection) {
+        cosmos.directConnection(maxConnectionsPerEndpoint, maxRequestsPerConnection);
+    }
+
+    // enables direct mode, close connections to endpoints without requests and idle connections
+    public void directIdleTimeout(Duration idleEndpointTimeout, Duration idleConnectionTimeout) {
+        cosmos.directIdleTimeout(idleEndpointTimeout, idleConnectionTimeout);
+    }
+
+    // http connection pool to gateway, used by gateway mode and metadata requests of direct mode
+    public void gatewayConnection(int maxConnectionPoolSize, Duration idleConnectionTimeout) {
+        cosmos.gatewayConnection(maxConnectionPoolSize, idleConnectionTimeout);
+    }
+
+    // direct mode only, share tcp connections between clients in same process, e.g. sync and async client when change feed or async repository is used
+    public void connectionSharingAcrossClients(boolean enabled) {
+        cosmos.connectionSharingAcrossClients(enabled);
+    }
+
+    // opt-in, if get/findOne doesn't respond within delay, send same read to next preferred region and take first response,
+    // primary read uses same client as writes, only hedge uses separate client, so hedge may not see writes of current session within replication lag, and loser still consumes RU
+    public void hedgeReads(Duration delay) {
+        context.collector.metrics.add(cosmos.hedgeReads(delay));
+        hedgeReads = true;
+    }
+
+    // rewrite SELECT * FROM c to select only @JsonProperty fields of view class when query with view class other than entity class
+    public void viewProjection() {
+        cosmos.viewProjection();
+    }
+
     public void slowOperationThreshold(Duration threshold) {
         cosmos.slowOperationThreshold(threshold);
     }
 
+    // attach sdk diagnostics to SLOW_COSMOSDB warning for sampled operations, sampled queries also enable query metrics, disabled by default
+    public void slowOperationDiagnostics(double sampleRate, int maxLength) {
+        cosmos.slowOperationDiagnostics(sampleRate, maxLength);
+    }
+
+    // opt-in, sampled queries also request index metrics (used and potential indexes), which costs extra work on server
+    public void indexMetrics() {
+        cosmos.indexMetrics();
+    }
+
     public void tooManyRowsReturnedThreshold(int threshold) {
         cosmos.tooManyRowsReturnedThreshold(threshold);
     }
 
+    // warn if total request charge (RU) of one action exceeds budget
+    public void requestChargeBudgetPerAction(double budget) {
+        cosmos.requestChargeBudgetPerAction(budget);
+    }
+
+    // throttle requests to container on client side, rate adapts to 429 responses, set to provisioned RU/s of container
+    public void throttle(Class<?> entityClass, double maxRequestChargePerSecond) {
+        if (entityClass == null || entityClass.getAnnotation(Entity.class) == null)
+            throw new Error("entity must have Entity annotation");
+        context.collector.metrics.add(cosmos.throttle(entityClass.getAnnotation(Entity.class).name(), maxRequestChargePerSecond));
+    }
+
+    // max concurrent micro batches per partition key range for bulk operations, allowed 1-5
+    public void bulkMaxConcurrency(int concurrency) {
+        cosmos.bulkMaxConcurrency(concurrency);
+    }
+
+    public <T> void changeFeed(Class<T> entityClass, ChangeFeedHandler<T> handler) {
+        if (entityClass == null || entityClass.getAnnotation(Entity.class) == null)
+            throw new Error("entity must have Entity annotation");
+        if (handler == null) throw new Error("handler must not be null");
+        changeFeed().add(entityClass, handler);
+    }
+
+    // lease container must be created with partition key /id
+    public void changeFeedLeaseContainer(String leaseContainer) {
+        changeFeed().leaseContainer = leaseContainer;
+    }
+
+    public void changeFeedMaxItemCount(int maxItemCount) {
+        changeFeed().maxItemCount = maxItemCount;
+    }
+
+    public void changeFeedPollDelay(Duration pollDelay) {
+        changeFeed().pollDelay = pollDelay;
+    }
+
+    private CosmosChangeFeed changeFeed() {
+        if (changeFeed == null) {
+            changeFeed = new CosmosChangeFeed(cosmos, context.logManager);
+            context.startupHook.add(changeFeed::start);
+            context.shutdownHook.add(ShutdownHook.STAGE_0, timeout -> changeFeed.stop());
+            context.collector.metrics.add(changeFeed);
+        }
+        return changeFeed;
+    }
+
     public <T> void entity(Class<T> entityClass) {
         if (entityClass == null || entityClass.getAnnotation(Entity.class) == null)
             throw new Error("entity must have Entity annotation");
-        context.beanFactory.bind(Types.generic(CosmosRepository.class, entityClass), name, cosmos.entity(entityClass));
+        bind(entityClass, cosmos.entity(entityClass, null));
+    }
+
+    // cache get(id) results including not found, only for small and hot entities which tolerate stale reads up to expiration
+    public <T> void entity(Class<T> entityClass, Duration cacheExpiration, int cacheMaxSize) {
+        if (entityClass == null || entityClass.getAnnotation(Entity.class) == null)
+            throw new Error("entity must have Entity annotation");
+        var cache = new CosmosEntityCache<T>(entityClass.getAnnotation(Entity.class).name(), cacheExpiration, cacheMaxSize);
+        context.collector.metrics.add(cache);
+        bind(entityClass, cosmos.entity(entityClass, cache));
+    }
+
+    // buffer upserts and write them in bulk every flushInterval, repeated upserts of same id are collapsed to last one,
+    // upsert returns once buffered and blocks when buffer is full, get() reads buffered entity, but queries only see it after flushed,
+    // only for high frequency and loss tolerant writes, e.g. counter or last seen time, buffered writes are lost if process crashes
+    public <T> void writeBehind(Class<T> entityClass, Duration flushInterval, int maxBufferSize) {
+        CosmosWriteBehind<T> writeBehind = cosmos.writeBehind(registeredEntity(entityClass, "writeBehind"), flushInterval, maxBufferSize, context.logManager);
+        context.startupHook.add(writeBehind::start);
+        // flush after executors and background tasks are stopped, before cosmos client is closed
+        context.shutdownHook.add(ShutdownHook.STAGE_3, writeBehind::shutdown);
+        context.collector.metrics.add(writeBehind);
+    }
+
+    private <T> void bind(Class<T> entityClass, CosmosEntityImpl<T> entity) {
+        context.beanFactory.bind(Types.generic(CosmosRepository.class, entityClass), name, entity);
+        context.beanFactory.bind(Types.generic(CosmosAsyncRepository.class, entityClass), name, cosmos.asyncEntity(entity));
+        entities.put(entityClass, entity);
         entityAdded = true;
     }
+
+    @SuppressWarnings("unchecked")
+    private <T> CosmosEntityImpl<T> registeredEntity(Class<T> entityClass, String method) {
+        CosmosEntityImpl<T> entity = (CosmosEntityImpl<T>) entities.get(entityClass);
+        if (entity == null)
+            throw new Error(format("entity must be registered before {}(), entityClass={}", method, entityClass == null ? null : entityClass.getCanonicalName()));
+        return entity;
+    }
 }
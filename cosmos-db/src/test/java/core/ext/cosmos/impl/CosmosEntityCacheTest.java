@@ -0,0 +1,52 @@
+package core.ext.cosmos.impl;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Neal
+ */
+class CosmosEntityCacheTest {
+    private CosmosEntityCache<String> cache;
+
+    @BeforeEach
+    void createCache() {
+        cache = new CosmosEntityCache<>("items", Duration.ofMinutes(1), 2);
+    }
+
+    @Test
+    void get() {
+        assertThat(cache.get("1")).isNull();
+
+        cache.put("1", "value1", cache.generation());
+        cache.put("2", null, cache.generation());
+        assertThat(cache.get("1").value).isEqualTo("value1");
+        assertThat(cache.get("2")).isNotNull();
+        assertThat(cache.get("2").value).isNull();
+    }
+
+    @Test
+    void evict() {
+        cache.put("1", "value1", cache.generation());
+        cache.put("2", "value2", cache.generation());
+        cache.get("1");
+        cache.put("3", "value3", cache.generation());
+
+        assertThat(cache.get("2")).isNull();
+        assertThat(cache.get("1")).isNotNull();
+    }
+
+    @Test
+    void invalidate() {
+        cache.put("1", "value1", cache.generation());
+        long generation = cache.generation();
+        cache.invalidate("1");
+        cache.put("1", "stale", generation);
+
+        assertThat(cache.get("1")).isNull();
+    }
+}
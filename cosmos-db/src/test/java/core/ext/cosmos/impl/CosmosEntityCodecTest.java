@@ -0,0 +1,121 @@
+package core.ext.cosmos.impl;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import core.ext.cosmos.Entity;
+import core.ext.cosmos.Id;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Neal
+ */
+class CosmosEntityCodecTest {
+    private CosmosClassValidator validator;
+    private CosmosEntityCodec<TestEntity> codec;
+
+    @BeforeEach
+    void createCodec() {
+        validator = new CosmosClassValidator(TestEntity.class);
+        validator.validateEntityClass();
+        codec = validator.codec(TestEntity.class);
+    }
+
+    @Test
+    void classFields() {
+        assertThat(validator.classFields.get(TestChild.class)).hasSize(1);
+    }
+
+    @Test
+    void encode() {
+        var entity = new TestEntity();
+        entity.id = "1";
+        entity.intField = 1;
+        entity.status = TestStatus.ACTIVE;
+        entity.createdTime = ZonedDateTime.of(2021, 7, 1, 10, 0, 0, 0, ZoneOffset.UTC);
+
+        ObjectNode node = codec.encodeNode(entity);
+        assertThat(node.get("id").asText()).isEqualTo("1");
+        assertThat(node.get("int_field").asInt()).isEqualTo(1);
+        assertThat(node.get("status").asText()).isEqualTo("A");
+        assertThat(node.get("created_time").asText()).isEqualTo("2021-07-01T10:00:00Z");
+        assertThat(node.has("string_field")).isFalse();
+    }
+
+    @Test
+    void decode() {
+        var entity = new TestEntity();
+        entity.id = "1";
+        entity.stringField = "value";
+        entity.longField = 2L;
+        entity.listField = List.of("a", "b");
+        entity.mapField = Map.of("key", 1.5);
+        entity.enumMapField = Map.of(TestStatus.INACTIVE, "value");
+        entity.child = new TestChild();
+        entity.child.booleanField = Boolean.TRUE;
+        entity.children = List.of(new TestChild());
+        entity.createdTime = ZonedDateTime.of(2021, 7, 1, 18, 0, 0, 0, ZoneOffset.ofHours(8));
+
+        ObjectNode node = codec.encodeNode(entity);
+        node.put("_etag", "etag");
+
+        TestEntity decoded = codec.decode(node);
+        assertThat(decoded).usingRecursiveComparison().ignoringFields("createdTime").isEqualTo(entity);
+        assertThat(decoded.createdTime).isEqualTo(ZonedDateTime.of(2021, 7, 1, 10, 0, 0, 0, ZoneOffset.UTC));
+    }
+
+    @Entity(name = "test")
+    public static class TestEntity {
+        @Id
+        public String id;
+
+        @JsonProperty("string_field")
+        public String stringField;
+
+        @JsonProperty("int_field")
+        public Integer intField;
+
+        @JsonProperty("long_field")
+        public Long longField;
+
+        @JsonProperty("status")
+        public TestStatus status;
+
+        @JsonProperty("created_time")
+        public ZonedDateTime createdTime;
+
+        @JsonProperty("list_field")
+        public List<String> listField;
+
+        @JsonProperty("map_field")
+        public Map<String, Double> mapField;
+
+        @JsonProperty("enum_map_field")
+        public Map<TestStatus, String> enumMapField;
+
+        @JsonProperty("child")
+        public TestChild child;
+
+        @JsonProperty("children")
+        public List<TestChild> children;
+    }
+
+    public static class TestChild {
+        @JsonProperty("boolean_field")
+        public Boolean booleanField;
+    }
+
+    public enum TestStatus {
+        @JsonProperty("A")
+        ACTIVE,
+        @JsonProperty("I")
+        INACTIVE
+    }
+}
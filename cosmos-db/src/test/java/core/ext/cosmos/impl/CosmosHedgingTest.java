@@ -0,0 +1,44 @@
+package core.ext.cosmos.impl;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Neal
+ */
+class CosmosHedgingTest {
+    private CosmosHedging hedging;
+
+    @BeforeEach
+    void createHedging() {
+        hedging = new CosmosHedging(Duration.ofMillis(20));
+    }
+
+    @Test
+    void primaryWins() {
+        String result = hedging.read(Mono.just("primary"), () -> Mono.just("hedge")).block();
+
+        assertThat(result).isEqualTo("primary");
+    }
+
+    @Test
+    void hedgeWins() {
+        Mono<String> primary = Mono.delay(Duration.ofSeconds(5)).thenReturn("primary");
+        String result = hedging.read(primary, () -> Mono.just("hedge")).block();
+
+        assertThat(result).isEqualTo("hedge");
+    }
+
+    @Test
+    void hedgeFailed() {
+        Mono<String> primary = Mono.delay(Duration.ofMillis(100)).thenReturn("primary");
+        String result = hedging.read(primary, () -> Mono.error(new IllegalStateException("hedge failed"))).block();
+
+        assertThat(result).isEqualTo("primary");
+    }
+}
@@ -0,0 +1,112 @@
+package core.ext.cosmos.impl;
+
+import com.azure.cosmos.models.CompositePath;
+import com.azure.cosmos.models.ExcludedPath;
+import com.azure.cosmos.models.IncludedPath;
+import com.azure.cosmos.models.IndexingPolicy;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import core.ext.cosmos.CompositeIndex;
+import core.ext.cosmos.Entity;
+import core.ext.cosmos.Id;
+import core.ext.cosmos.Indexed;
+import core.ext.cosmos.NotIndexed;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author Neal
+ */
+class CosmosIndexingPolicyBuilderTest {
+    @Test
+    void indexed() {
+        IndexingPolicy policy = new CosmosClassValidator(TestIndexedEntity.class).indexingPolicy();
+
+        assertThat(policy.getIncludedPaths()).extracting(IncludedPath::getPath).containsExactly("/status/?", "/created_time/?", "/child/*");
+        assertThat(policy.getExcludedPaths()).extracting(ExcludedPath::getPath).containsExactly("/*", CosmosIndexingPolicyBuilder.ETAG_PATH);
+        assertThat(policy.getCompositeIndexes()).hasSize(1);
+        assertThat(policy.getCompositeIndexes().get(0)).extracting(CompositePath::getPath).containsExactly("/status", "/created_time");
+    }
+
+    @Test
+    void notIndexed() {
+        IndexingPolicy policy = new CosmosClassValidator(TestNotIndexedEntity.class).indexingPolicy();
+
+        assertThat(policy.getIncludedPaths()).extracting(IncludedPath::getPath).containsExactly("/*");
+        assertThat(policy.getExcludedPaths()).extracting(ExcludedPath::getPath).containsExactly("/children/[]/name/?", CosmosIndexingPolicyBuilder.ETAG_PATH);
+    }
+
+    @Test
+    void diff() {
+        IndexingPolicy current = new CosmosClassValidator(TestNotIndexedEntity.class).indexingPolicy();
+        IndexingPolicy target = new CosmosClassValidator(TestIndexedEntity.class).indexingPolicy();
+
+        assertThat(CosmosClassValidator.indexingPolicyChanges(current, current)).isEmpty();
+        assertThat(CosmosClassValidator.indexingPolicyChanges(current, target))
+            .contains("-included /*", "+included /status/?", "-excluded /children/[]/name/?", "+excluded /*", "+composite (/status asc, /created_time desc)");
+    }
+
+    @Test
+    void mixed() {
+        assertThatThrownBy(() -> new CosmosClassValidator(TestMixedEntity.class).indexingPolicy())
+            .isInstanceOf(Error.class)
+            .hasMessageContaining("must not mix @Indexed and @NotIndexed");
+    }
+
+    @Entity(name = "indexed")
+    public static class TestIndexedEntity {
+        @Id
+        public String id;
+
+        @Indexed
+        @CompositeIndex(name = "status_time", order = 1)
+        @JsonProperty("status")
+        public String status;
+
+        @Indexed
+        @CompositeIndex(name = "status_time", order = 2, descending = true)
+        @JsonProperty("created_time")
+        public Long createdTime;
+
+        @Indexed
+        @JsonProperty("child")
+        public TestChild child;
+    }
+
+    @Entity(name = "not_indexed")
+    public static class TestNotIndexedEntity {
+        @Id
+        public String id;
+
+        @JsonProperty("children")
+        public List<TestNotIndexedChild> children;
+    }
+
+    @Entity(name = "mixed")
+    public static class TestMixedEntity {
+        @Id
+        public String id;
+
+        @Indexed
+        @JsonProperty("status")
+        public String status;
+
+        @NotIndexed
+        @JsonProperty("description")
+        public String description;
+    }
+
+    public static class TestChild {
+        @JsonProperty("name")
+        public String name;
+    }
+
+    public static class TestNotIndexedChild {
+        @NotIndexed
+        @JsonProperty("name")
+        public String name;
+    }
+}
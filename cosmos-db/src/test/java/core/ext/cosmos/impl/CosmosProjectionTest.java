@@ -0,0 +1,52 @@
+package core.ext.cosmos.impl;
+
+import com.azure.cosmos.models.SqlQuerySpec;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Neal
+ */
+class CosmosProjectionTest {
+    private CosmosProjection projection;
+
+    @BeforeEach
+    void createProjection() {
+        projection = new CosmosProjection();
+    }
+
+    @Test
+    void project() {
+        assertThat(project("SELECT * FROM c WHERE c.status = @status", TestView.class))
+            .isEqualTo("SELECT c.name, c.created_time FROM c WHERE c.status = @status");
+        assertThat(project("select top 10 * from root r order by r.name", TestView.class))
+            .isEqualTo("SELECT top 10 r.name, r.created_time from root r order by r.name");
+    }
+
+    @Test
+    void notProject() {
+        assertThat(project("SELECT c.id FROM c", TestView.class)).isEqualTo("SELECT c.id FROM c");
+        assertThat(project("SELECT * FROM c JOIN t IN c.tags", TestView.class)).isEqualTo("SELECT * FROM c JOIN t IN c.tags");
+        assertThat(project("SELECT * FROM c", TestKeywordView.class)).isEqualTo("SELECT * FROM c");
+    }
+
+    private String project(String query, Class<?> viewClass) {
+        return projection.project(new SqlQuerySpec(query), viewClass).getQueryText();
+    }
+
+    public static class TestView {
+        @JsonProperty("name")
+        public String name;
+
+        @JsonProperty("created_time")
+        public String createdTime;
+    }
+
+    public static class TestKeywordView {
+        @JsonProperty("value")
+        public String value;
+    }
+}
@@ -0,0 +1,65 @@
+package core.ext.cosmos.impl;
+
+import core.framework.internal.stat.Stats;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Neal
+ */
+class CosmosThrottlerTest {
+    private CosmosThrottler throttler;
+
+    @BeforeEach
+    void createThrottler() {
+        throttler = new CosmosThrottler("items", 1000);
+    }
+
+    @Test
+    void waitTime() {
+        assertThat(throttler.waitTime(false, System.nanoTime())).isZero();
+        assertThat(throttler.waitTime(true, System.nanoTime())).isZero();
+
+        throttler.consume(700, false);
+        assertThat(throttler.waitTime(false, System.nanoTime())).isZero();
+        assertThat(throttler.waitTime(true, System.nanoTime())).isPositive();
+    }
+
+    @Test
+    void waitTimeWithBackgroundDebt() {
+        throttler.consume(5000, true);
+
+        assertThat(throttler.waitTime(true, System.nanoTime())).isPositive();
+        assertThat(throttler.waitTime(false, System.nanoTime())).isZero();
+    }
+
+    @Test
+    void acquireInteractive() {
+        throttler.consume(100_000, false);
+
+        long start = System.nanoTime();
+        throttler.acquire(false);
+        assertThat(System.nanoTime() - start).isLessThan(Duration.ofSeconds(1).toNanos());
+    }
+
+    @Test
+    void throttled() {
+        throttler.throttled(Duration.ofSeconds(10));
+
+        assertThat(throttler.waitTime(true, System.nanoTime())).isPositive();
+    }
+
+    @Test
+    void throttledWithinRetryAfter() {
+        throttler.throttled(Duration.ofSeconds(10));
+        throttler.throttled(Duration.ofSeconds(10));
+
+        var stats = new Stats();
+        throttler.collect(stats);
+        assertThat(stats.stats).containsEntry("cosmos_throttle_items_count", 2d).containsEntry("cosmos_throttle_items_rate", 500d);
+    }
+}
@@ -0,0 +1,156 @@
+package core.ext.mongo.migration;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import core.ext.mongo.migration.domain.BatchCheckpoint;
+import core.ext.mongo.migration.service.FlywayService;
+import core.ext.mongo.migration.service.MigrationThrottle;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Script parameter for large data migration, iterates collection in _id order chunk by chunk, writes each chunk with unordered bulk write,
+ * and saves last _id as checkpoint in history after each chunk, so failed script resumes from last finished chunk on next run,
+ * each update/replace/apply call of script has its own checkpoint, which is cleared when the call finishes
+ *
+ * @author Neal
+ */
+public class BatchMigrationContext {
+    private final Logger logger = LoggerFactory.getLogger(BatchMigrationContext.class);
+    private final MongoCollection<Document> collection;
+    private final String scriptId;
+    private final FlywayService flywayService;
+    private final MigrationThrottle throttle;
+    private Bson filter = new Document();
+    private int batchSize = 1000;
+    private int calls;
+    private long throttledTimeInNanos;
+
+    public BatchMigrationContext(MongoCollection<Document> collection, String scriptId, FlywayService flywayService, MigrationThrottle throttle) {
+        this.collection = collection;
+        this.scriptId = scriptId;
+        this.flywayService = flywayService;
+        this.throttle = throttle;
+    }
+
+    public MongoCollection<Document> collection() {
+        return collection;
+    }
+
+    /**
+     * only documents match filter are processed, filter is combined with _id range of chunk
+     */
+    public BatchMigrationContext filter(Bson filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * wait while replication lag or server load is over threshold, called before each chunk write,
+     * scripts write with collection() directly should call it before each batch of writes
+     */
+    public void throttle() {
+        throttledTimeInNanos += throttle.acquire();
+    }
+
+    public long throttledTimeInNanos() {
+        return throttledTimeInNanos;
+    }
+
+    public BatchMigrationContext batchSize(int batchSize) {
+        if (batchSize <= 0) throw new Error("batch size must be greater than 0, batchSize=" + batchSize);
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * update each document, return null to skip
+     *
+     * @return processed docs
+     */
+    public long update(Function<Document, Bson> update) {
+        return apply(document -> {
+            Bson value = update.apply(document);
+            return value == null ? null : new UpdateOneModel<>(Filters.eq("_id", document.get("_id")), value);
+        });
+    }
+
+    /**
+     * replace each document with transformed one, return null to skip
+     *
+     * @return processed docs
+     */
+    public long replace(UnaryOperator<Document> transform) {
+        return apply(document -> {
+            Document value = transform.apply(document);
+            return value == null ? null : new ReplaceOneModel<>(Filters.eq("_id", document.get("_id")), value);
+        });
+    }
+
+    /**
+     * build write for each document, return null to skip
+     *
+     * @return processed docs, include docs processed by previous failed runs
+     */
+    public long apply(Function<Document, WriteModel<Document>> writer) {
+        int call = calls++;
+        BatchCheckpoint checkpoint = flywayService.checkpoint(scriptId, call);
+        if (checkpoint == null) {
+            checkpoint = new BatchCheckpoint();
+        } else {
+            logger.info("resume batch migration, script={}, call={}, lastId={}, processedDocs={}", scriptId, call, checkpoint.lastId, checkpoint.processedDocs);
+        }
+
+        long startTime = System.nanoTime();
+        long docs = 0;
+        long writtenDocs = 0;
+        int chunks = 0;
+        while (true) {
+            Bson chunkFilter = checkpoint.lastId == null ? filter : Filters.and(filter, Filters.gt("_id", checkpoint.lastId));
+            List<Document> documents = collection.find(chunkFilter).sort(Sorts.ascending("_id")).limit(batchSize).into(new ArrayList<>(batchSize));
+            if (documents.isEmpty()) break;
+
+            List<WriteModel<Document>> writes = new ArrayList<>(documents.size());
+            for (Document document : documents) {
+                WriteModel<Document> write = writer.apply(document);
+                if (write != null) writes.add(write);
+            }
+            if (!writes.isEmpty()) {
+                throttle();
+                BulkWriteResult result = collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+                writtenDocs += result.getModifiedCount() + result.getUpserts().size() + result.getDeletedCount();
+            }
+
+            checkpoint.lastId = documents.get(documents.size() - 1).get("_id");
+            checkpoint.processedDocs += documents.size();
+            flywayService.saveCheckpoint(scriptId, call, checkpoint);
+            docs += documents.size();
+            chunks++;
+            logger.info("batch migration progress, script={}, chunk={}, processedDocs={}, writtenDocs={}, docsPerSecond={}",
+                scriptId, chunks, checkpoint.processedDocs, writtenDocs, docsPerSecond(docs, System.nanoTime() - startTime));
+            if (documents.size() < batchSize) break;
+        }
+        flywayService.clearCheckpoint(scriptId, call);
+        logger.info("batch migration finished, script={}, chunks={}, processedDocs={}, writtenDocs={}, docsPerSecond={}, throttledTime={}",
+            scriptId, chunks, checkpoint.processedDocs, writtenDocs, docsPerSecond(docs, System.nanoTime() - startTime), Duration.ofNanos(throttledTimeInNanos));
+        return checkpoint.processedDocs;
+    }
+
+    private long docsPerSecond(long docs, long elapsedInNanos) {
+        return elapsedInNanos <= 0 ? 0 : docs * 1_000_000_000L / elapsedInNanos;
+    }
+}
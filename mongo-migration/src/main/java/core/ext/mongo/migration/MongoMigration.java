@@ -9,8 +9,12 @@ import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Aggregates;
 import core.ext.mongo.migration.annotation.Flyway;
 import core.ext.mongo.migration.annotation.Script;
+import core.ext.mongo.migration.domain.MigrationScript;
 import core.ext.mongo.migration.exception.FlywayExecuteException;
 import core.ext.mongo.migration.service.FlywayService;
+import core.ext.mongo.migration.service.MigrationScheduler;
+import core.ext.mongo.migration.service.MigrationThrottle;
+import core.ext.mongo.migration.util.FlywayIndex.IndexedScript;
 import core.framework.internal.log.LogManager;
 import core.framework.log.Markers;
 import core.framework.mongo.impl.LocalDateTimeCodec;
@@ -26,26 +30,32 @@ import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
  * @author Neal
  */
 public class MongoMigration {
+    private static final List<Class<?>> ARGUMENT_TYPES = List.of(MongoCollection.class, BatchMigrationContext.class, MongoDatabase.class);
     private final Logger logger = LoggerFactory.getLogger(MongoMigration.class);
     private final MongoClientSettings clientSettings;
     private final String dataBase;
     private final String runEnvironment;
     private String packagePath;
+    private int parallelism = 1;
+    private Duration maxReplicationLag;
+    private long maxWriteOpsPerSecond;
+    private Duration maxThrottleTime = Duration.ofMinutes(10);
 
 
     public MongoMigration(String uri) {
@@ -80,6 +90,40 @@ public class MongoMigration {
         }
     }
 
+    /**
+     * scripts of different collections run concurrently, default is 1 (sequential)
+     */
+    public MongoMigration parallelism(int parallelism) {
+        if (parallelism < 1) throw new Error("parallelism must be greater than 0, parallelism=" + parallelism);
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * pause batch writes while lag between primary and slowest secondary is over max lag, delayed and hidden members are excluded, require clusterMonitor role
+     */
+    public MongoMigration maxReplicationLag(Duration maxReplicationLag) {
+        this.maxReplicationLag = maxReplicationLag;
+        return this;
+    }
+
+    /**
+     * pause batch writes while server insert/update/delete rate is over max ops per second, 0 to disable
+     */
+    public MongoMigration maxWriteOpsPerSecond(long maxWriteOpsPerSecond) {
+        this.maxWriteOpsPerSecond = maxWriteOpsPerSecond;
+        return this;
+    }
+
+    /**
+     * max time of each throttle wait, migration writes proceed with warning after it, default is 10 minutes
+     */
+    public MongoMigration maxThrottleTime(Duration maxThrottleTime) {
+        if (maxThrottleTime == null || maxThrottleTime.isNegative() || maxThrottleTime.isZero()) throw new Error("max throttle time must be greater than 0, maxThrottleTime=" + maxThrottleTime);
+        this.maxThrottleTime = maxThrottleTime;
+        return this;
+    }
+
     /**
      * do script migration
      */
@@ -89,10 +133,26 @@ public class MongoMigration {
         try (MongoClient mongoClient = MongoClients.create(clientSettings)) {
             MongoDatabase db = mongoClient.getDatabase(dataBase);
             FlywayService flywayService = new FlywayService(db);
-            flywayService.ensureIndex();
-            for (Class<?> clazz : flywayService.scanFlywayClass(packagePath)) {
-                migration(db, flywayService, clazz);
+            List<MigrationScript> scripts = new ArrayList<>();
+            for (Map.Entry<Class<?>, List<IndexedScript>> entry : flywayService.flywayScripts(packagePath, "dev".equals(runEnvironment)).entrySet()) {
+                scripts.addAll(scripts(db, entry.getKey(), entry.getValue()));
             }
+
+            // scripts need to run once, runAlways scripts are not tracked by fingerprint
+            List<String> catalogue = scripts.stream().filter(it -> !it.script.runAlways() && it.runnable).map(it -> it.id).collect(Collectors.toList());
+            String fingerprint = flywayService.fingerprint(runEnvironment, catalogue);
+            boolean catalogueUnchanged = flywayService.isCatalogueUnchanged(fingerprint);
+            Set<String> succeededScripts = catalogueUnchanged ? ConcurrentHashMap.newKeySet() : flywayService.succeededScripts();
+            if (catalogueUnchanged) succeededScripts.addAll(catalogue);
+            if (scripts.stream().noneMatch(it -> it.runnable && (it.script.runAlways() || !succeededScripts.contains(it.id)))) {
+                logger.info("no pending flyway script, fingerprint={}", fingerprint);
+                return;
+            }
+
+            flywayService.ensureIndex();
+            var throttle = new MigrationThrottle(mongoClient.getDatabase("admin"), maxReplicationLag, maxWriteOpsPerSecond, maxThrottleTime);
+            new MigrationScheduler(parallelism).run(scripts, script -> migration(db, flywayService, throttle, succeededScripts, script), flywayService::flushHistories);
+            if (!catalogueUnchanged && succeededScripts.containsAll(catalogue)) flywayService.saveFingerprint(fingerprint);
         } catch (Throwable e) {
             logger.error(Markers.errorCode("FLYWAY_MIGRATION_FAILED"), e.getMessage(), e);
             throw new FlywayExecuteException("Flyway script invoked failed! Please check your script.", e);
@@ -100,51 +160,87 @@ public class MongoMigration {
     }
 
     /**
-     * Do migration
+     * Collect scripts of class in given order, methods are looked up by name, not reflecting over all methods of class
      */
-    private void migration(MongoDatabase db, FlywayService flywayService, Class<?> clazz) throws InstantiationException, IllegalAccessException, InvocationTargetException, NoSuchMethodException {
+    private List<MigrationScript> scripts(MongoDatabase db, Class<?> clazz, List<IndexedScript> indexedScripts) throws InstantiationException, IllegalAccessException, InvocationTargetException, NoSuchMethodException {
         Flyway flyway = clazz.getAnnotation(Flyway.class);
         MongoCollection<Document> collection = db.getCollection(flyway.collection());
         Object instance = clazz.getDeclaredConstructor((Class<?>[]) null).newInstance();
 
-        Map<String, Method> methodMap = Arrays.stream(clazz.getDeclaredMethods()).collect(Collectors.toMap(Method::getName, Function.identity()));
-        Map<String, ? extends Script> scriptMap = flywayService.getClassScriptMap(clazz);
-        List<Method> scriptMethods = methodMap.entrySet().stream().filter(it -> scriptMap.containsKey(it.getKey())).map(Map.Entry::getValue)
-            .sorted(Comparator.comparingInt(it -> scriptMap.get(it.getName()).order())).collect(Collectors.toList());
-
-        StopWatch stopWatch = new StopWatch();
-        for (Method method : scriptMethods) {
-            Script script = scriptMap.get(method.getName());
-            if (script.runAt().length > 0 && !List.of(script.runAt()).contains(this.runEnvironment)) {
-                logger.info("skip collect {}, script {}", flyway.collection(), method.getName());
-                continue;
+        List<MigrationScript> scripts = new ArrayList<>(indexedScripts.size());
+        for (IndexedScript indexedScript : indexedScripts) {
+            Method method = method(clazz, indexedScript.methodName);
+            Script script = method == null ? null : method.getAnnotation(Script.class);
+            if (script == null)
+                throw new FlywayExecuteException(Strings.format("Flyway class {} can't find script method {} with supported argument, or flyway index is stale, please rebuild!", clazz.getName(), indexedScript.methodName));
+            var migrationScript = new MigrationScript();
+            migrationScript.id = generateId(flyway.collection(), script.ticket(), method.getName());
+            migrationScript.flyway = flyway;
+            migrationScript.script = script;
+            migrationScript.instance = instance;
+            migrationScript.method = method;
+            if (!"none".equalsIgnoreCase(script.testMethod())) migrationScript.testMethod = method(clazz, script.testMethod());
+            migrationScript.collection = collection;
+            migrationScript.barrier = MongoDatabase.class.equals(method.getParameterTypes()[0]);
+            migrationScript.runnable = indexedScript.runAt.isEmpty() || indexedScript.runAt.contains(runEnvironment);
+            scripts.add(migrationScript);
+        }
+        return scripts;
+    }
+
+    // script and test methods take one argument of supported types, null if not found
+    private Method method(Class<?> clazz, String name) {
+        for (Class<?> parameterType : ARGUMENT_TYPES) {
+            try {
+                return clazz.getDeclaredMethod(name, parameterType);
+            } catch (NoSuchMethodException e) {
+                logger.debug("try next argument type, class={}, method={}, argumentType={}", clazz.getName(), name, parameterType.getName());
             }
+        }
+        return null;
+    }
 
-            boolean needRunTest = !"none".equalsIgnoreCase(script.testMethod());
-            if (needRunTest) checkTestMethod(instance, methodMap.get(script.testMethod()));
-            String scriptId = generateId(flyway.collection(), script.ticket(), method.getName());
-            if (script.runAlways() || !flywayService.isAlreadyRun(scriptId)) {
-                stopWatch.elapsed();
-                boolean isSuccess = false;
-                try {
-                    if (script.autoBackup()) {
-                        logger.info("Auto backup collect#{} begin", flyway.collection());
-                        backupCollection(flyway, script, collection);
-                        logger.info("Auto backup collect#{} end", flyway.collection());
-                    }
-                    invokeMethod(method, instance, db, collection);
-                    logger.info("Collect #{}, ticket #{}, Invoke class #{}, method #{}", flyway.collection(), script.ticket(), instance.getClass().getCanonicalName(), method.getName());
-                    if (needRunTest) {
-                        isSuccess = (Boolean) invokeMethod(methodMap.get(script.testMethod()), instance, db, collection);
-                    } else {
-                        isSuccess = true;
-                    }
-                    if (!isSuccess) {
-                        throw new FlywayExecuteException(Strings.format("Flyway script id #{}, test #{} executed failed", scriptId, script.testMethod()));
-                    }
-                } finally {
-                    flywayService.saveHistory(scriptId, script, flyway.collection(), stopWatch.elapsed(), isSuccess);
+    /**
+     * Do migration
+     */
+    private void migration(MongoDatabase db, FlywayService flywayService, MigrationThrottle throttle, Set<String> succeededScripts, MigrationScript migrationScript) throws InvocationTargetException, IllegalAccessException {
+        Flyway flyway = migrationScript.flyway;
+        Script script = migrationScript.script;
+        Method method = migrationScript.method;
+        Object instance = migrationScript.instance;
+        MongoCollection<Document> collection = migrationScript.collection;
+        if (!migrationScript.runnable) {
+            logger.info("skip collect {}, script {}", flyway.collection(), method.getName());
+            return;
+        }
+
+        boolean needRunTest = !"none".equalsIgnoreCase(script.testMethod());
+        if (needRunTest) checkTestMethod(instance, migrationScript.testMethod);
+        String scriptId = migrationScript.id;
+        if (script.runAlways() || !succeededScripts.contains(scriptId)) {
+            StopWatch stopWatch = new StopWatch();
+            boolean isSuccess = false;
+            try {
+                if (script.autoBackup()) {
+                    logger.info("Auto backup collect#{} begin", flyway.collection());
+                    backupCollection(flyway, script, collection);
+                    logger.info("Auto backup collect#{} end", flyway.collection());
+                }
+                var context = new BatchMigrationContext(collection, scriptId, flywayService, throttle);
+                invokeMethod(method, instance, db, collection, context);
+                logger.info("Collect #{}, ticket #{}, Invoke class #{}, method #{}, throttled time #{}", flyway.collection(), script.ticket(), instance.getClass().getCanonicalName(), method.getName(),
+                    Duration.ofNanos(context.throttledTimeInNanos()));
+                if (needRunTest) {
+                    isSuccess = (Boolean) invokeMethod(migrationScript.testMethod, instance, db, collection, context);
+                } else {
+                    isSuccess = true;
+                }
+                if (!isSuccess) {
+                    throw new FlywayExecuteException(Strings.format("Flyway script id #{}, test #{} executed failed", scriptId, script.testMethod()));
                 }
+            } finally {
+                flywayService.saveHistory(scriptId, script, flyway.collection(), stopWatch.elapsed(), isSuccess);
+                if (isSuccess) succeededScripts.add(scriptId);
             }
         }
     }
@@ -160,17 +256,18 @@ public class MongoMigration {
     }
 
     /**
-     * only support method with arguments, MongoDatabase & MongoCollection
+     * only support method with arguments, MongoDatabase & MongoCollection & BatchMigrationContext
      *
      * @param method
      * @param instance
      * @param db
      * @param collection
+     * @param context
      * @return
      * @throws InvocationTargetException
      * @throws IllegalAccessException
      */
-    private Object invokeMethod(Method method, Object instance, MongoDatabase db, MongoCollection<Document> collection) throws InvocationTargetException, IllegalAccessException {
+    private Object invokeMethod(Method method, Object instance, MongoDatabase db, MongoCollection<Document> collection, BatchMigrationContext context) throws InvocationTargetException, IllegalAccessException {
         logger.info("Invoke class #{}, method #{}", instance.getClass().getName(), method.getName());
         if (method.getParameterTypes().length == 1) {
             Class<?> parameterType = method.getParameterTypes()[0];
@@ -179,6 +276,8 @@ public class MongoMigration {
 
             } else if (MongoCollection.class.equals(parameterType)) {
                 return method.invoke(instance, collection);
+            } else if (BatchMigrationContext.class.equals(parameterType)) {
+                return method.invoke(instance, context);
             } else {
                 throw new FlywayExecuteException(Strings.format("Flyway class {} don't support method {}!", instance.getClass().getName(), method.getName()));
             }
@@ -17,6 +17,11 @@ public @interface Flyway {
      */
     String collection();
 
+    /**
+     * Flyway classes must be finished before any script of this class runs
+     */
+    Class<?>[] dependsOn() default {};
+
     /**
      * execute strategy
      */
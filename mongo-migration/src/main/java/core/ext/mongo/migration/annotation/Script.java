@@ -47,6 +47,11 @@ public @interface Script {
      */
     boolean autoBackup() default false;
 
+    /**
+     * Tickets of scripts (in any flyway class) must be finished before this script runs
+     */
+    String[] dependsOn() default {};
+
     /**
      * Backup target database
      * Mongo driver can't support out to other database, TBD
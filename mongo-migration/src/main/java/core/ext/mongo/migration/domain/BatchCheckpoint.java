@@ -0,0 +1,9 @@
+package core.ext.mongo.migration.domain;
+
+/**
+ * @author Neal
+ */
+public class BatchCheckpoint {
+    public Object lastId;       // _id of last processed document, chunk resumes after it
+    public long processedDocs;
+}
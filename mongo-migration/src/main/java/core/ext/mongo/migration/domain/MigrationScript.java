@@ -0,0 +1,23 @@
+package core.ext.mongo.migration.domain;
+
+import com.mongodb.client.MongoCollection;
+import core.ext.mongo.migration.annotation.Flyway;
+import core.ext.mongo.migration.annotation.Script;
+import org.bson.Document;
+
+import java.lang.reflect.Method;
+
+/**
+ * @author Neal
+ */
+public class MigrationScript {
+    public String id;
+    public Flyway flyway;
+    public Script script;
+    public Object instance;
+    public Method method;
+    public Method testMethod;       // null if script has no test method
+    public MongoCollection<Document> collection;
+    public boolean barrier;         // script takes MongoDatabase, may touch any collection, runs alone
+    public boolean runnable;        // runAt of script includes current environment
+}
@@ -0,0 +1,92 @@
+package core.ext.mongo.migration.processor;
+
+import core.ext.mongo.migration.annotation.Flyway;
+import core.ext.mongo.migration.annotation.Script;
+import core.ext.mongo.migration.util.FlywayIndex;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * write index of @Flyway classes and @Script methods to FlywayIndex.RESOURCE, so FlywayService doesn't need to load all classes of package
+ * or reflect over all methods of flyway class,
+ * enable with annotationProcessor dependency on mongo-migration
+ *
+ * @author Neal
+ */
+public class FlywayIndexProcessor extends AbstractProcessor {
+    private final Map<String, List<String>> entries = new TreeMap<>();    // className -> lines, sorted to generate stable index
+    private final List<Element> originatingElements = new ArrayList<>();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Set.of(Flyway.class.getCanonicalName(), Script.class.getCanonicalName());
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            if (!entries.isEmpty()) writeIndex();
+            return false;
+        }
+        for (Element element : roundEnv.getElementsAnnotatedWith(Flyway.class)) {
+            if (element.getKind() != ElementKind.CLASS) continue;
+            var flywayClass = (TypeElement) element;
+            String className = processingEnv.getElementUtils().getBinaryName(flywayClass).toString();
+            List<String> lines = new ArrayList<>();
+            lines.add(FlywayIndex.flywayLine(className));
+            for (Element member : flywayClass.getEnclosedElements()) {
+                Script script = member.getAnnotation(Script.class);
+                if (member.getKind() != ElementKind.METHOD || script == null) continue;
+                lines.add(FlywayIndex.scriptLine(className, member.getSimpleName().toString(), script.order(), List.of(script.runAt())));
+            }
+            entries.put(className, lines);
+            originatingElements.add(flywayClass);
+        }
+        for (Element element : roundEnv.getElementsAnnotatedWith(Script.class)) {
+            Element enclosing = element.getEnclosingElement();
+            if (enclosing.getAnnotation(Flyway.class) == null)
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "@Script method must be declared in @Flyway class", element);
+        }
+        return false;
+    }
+
+    private void writeIndex() {
+        try {
+            FileObject resource = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", FlywayIndex.RESOURCE, originatingElements.toArray(new Element[0]));
+            try (Writer writer = new OutputStreamWriter(resource.openOutputStream(), StandardCharsets.UTF_8)) {
+                writer.write("# generated by " + FlywayIndexProcessor.class.getName() + "\n");
+                for (List<String> lines : entries.values()) {
+                    for (String line : lines) {
+                        writer.write(line);
+                        writer.write('\n');
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
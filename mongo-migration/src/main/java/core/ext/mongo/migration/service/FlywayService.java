@@ -2,30 +2,53 @@ package core.ext.mongo.migration.service;
 
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.Indexes;
-import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 import core.ext.mongo.migration.annotation.Flyway;
 import core.ext.mongo.migration.annotation.Script;
+import core.ext.mongo.migration.domain.BatchCheckpoint;
 import core.ext.mongo.migration.domain.FlywayScriptHistory;
 import core.ext.mongo.migration.util.ClassUtils;
+import core.ext.mongo.migration.util.FlywayIndex;
+import core.ext.mongo.migration.util.FlywayIndex.IndexedScript;
 import core.framework.log.Markers;
 import core.framework.util.Maps;
+import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Neal
  */
 public class FlywayService {
+    private static final String CHECKPOINTS = "checkpoints";
+    private static final String CATALOGUE_ID = "_catalogue";
+    private static final String FINGERPRINT = "fingerprint";
     private final Logger logger = LoggerFactory.getLogger(FlywayService.class);
     private final MongoCollection<FlywayScriptHistory> collection;
+    private final List<WriteModel<FlywayScriptHistory>> pendingHistories = new ArrayList<>();
 
     public FlywayService(MongoDatabase database) {
         this(database, "flyway_script_histories");
@@ -41,6 +64,84 @@ public class FlywayService {
         this.collection = database.getCollection(collectionName, FlywayScriptHistory.class);
     }
 
+    /**
+     * load flyway classes and their scripts from index generated by FlywayIndexProcessor, scan package if index is not available,
+     * index is trusted as is, only verified against package scan when required, e.g. in dev where classes may be compiled by IDE without annotation processing
+     *
+     * @param packagePath package of flyway classes, include sub packages
+     * @param verifyIndex scan package to check index is up to date
+     * @return scripts of flyway classes sorted by class name, scripts of class are sorted by order
+     */
+    public Map<Class<?>, List<IndexedScript>> flywayScripts(String packagePath, boolean verifyIndex) {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        FlywayIndex index = FlywayIndex.load(classLoader);
+        if (index != null) {
+            List<String> classNames = index.classNames(packagePath);
+            if (!classNames.isEmpty()) {
+                try {
+                    Map<Class<?>, List<IndexedScript>> scripts = new LinkedHashMap<>();
+                    for (String className : classNames) {
+                        scripts.put(Class.forName(className, false, classLoader), index.scripts(className));
+                    }
+                    if (!verifyIndex || isIndexUpToDate(packagePath, scripts)) {
+                        logger.info("load flyway scripts from index, package={}, classes={}", packagePath, scripts.size());
+                        return scripts;
+                    }
+                } catch (ClassNotFoundException e) {
+                    logger.warn(Markers.errorCode("STALE_FLYWAY_INDEX"), "flyway index is stale, scan package instead, error={}", e.getMessage(), e);
+                }
+            }
+        }
+        logger.info("scan flyway classes, package={}", packagePath);
+        Map<Class<?>, List<IndexedScript>> scripts = new LinkedHashMap<>();
+        for (Class<?> clazz : scanFlywayClass(packagePath)) {
+            scripts.put(clazz, scripts(clazz));
+        }
+        return scripts;
+    }
+
+    // loads all classes of package, only used to verify index
+    private boolean isIndexUpToDate(String packagePath, Map<Class<?>, List<IndexedScript>> indexedScripts) {
+        List<Class<?>> classes = scanFlywayClass(packagePath);
+        boolean upToDate = classes.size() == indexedScripts.size();
+        for (Class<?> clazz : classes) {
+            List<IndexedScript> scripts = indexedScripts.get(clazz);
+            if (scripts == null || !lines(clazz, scripts).equals(lines(clazz, scripts(clazz)))) {
+                upToDate = false;
+                logger.warn(Markers.errorCode("STALE_FLYWAY_INDEX"), "flyway index does not match class, scan package instead, please rebuild with annotation processing, class={}", clazz.getName());
+                break;
+            }
+        }
+        return upToDate;
+    }
+
+    private List<String> lines(Class<?> clazz, List<IndexedScript> scripts) {
+        List<String> lines = new ArrayList<>(scripts.size());
+        for (IndexedScript script : scripts) {
+            lines.add(FlywayIndex.scriptLine(clazz.getName(), script.methodName, script.order, script.runAt));
+        }
+        return lines;
+    }
+
+    private List<IndexedScript> scripts(Class<?> clazz) {
+        List<IndexedScript> scripts = new ArrayList<>();
+        for (Map.Entry<String, ? extends Script> entry : getClassScriptMap(clazz).entrySet()) {
+            var script = new IndexedScript();
+            script.methodName = entry.getKey();
+            script.order = entry.getValue().order();
+            script.runAt = List.of(entry.getValue().runAt());
+            scripts.add(script);
+        }
+        scripts.sort(FlywayIndex.ORDER);
+        return scripts;
+    }
+
+    /**
+     * scan package and sub packages, load every class to check @Flyway
+     *
+     * @param packagePath package of flyway classes, include sub packages
+     * @return flyway classes sorted by class name
+     */
     public List<Class<?>> scanFlywayClass(String packagePath) {
         try {
             return ClassUtils.getClassesWithAnnotation(packagePath, Flyway.class);
@@ -76,24 +177,125 @@ public class FlywayService {
     }
 
     /**
-     * check already run
+     * fingerprint of script catalogue, changes when script is added, removed or renamed
+     *
+     * @param environment run environment, runAt decides which scripts are in catalogue
+     * @param scriptIds   ids of scripts need to run once in environment
+     * @return hex SHA-256 of sorted script ids
+     */
+    public String fingerprint(String environment, Collection<String> scriptIds) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(environment.getBytes(StandardCharsets.UTF_8));
+            for (String scriptId : new TreeSet<>(scriptIds)) {
+                digest.update((byte) '\n');
+                digest.update(scriptId.getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder builder = new StringBuilder(64);
+            for (byte value : digest.digest()) {
+                builder.append(String.format("%02x", value));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * fingerprint is saved only when all scripts of catalogue succeeded, so same fingerprint means nothing is pending,
+     * delete catalogue history to force checking every script
      *
-     * @param id
-     * @return yes or not.
+     * @return whether saved fingerprint is same
      */
-    public boolean isAlreadyRun(String id) {
-        return collection.countDocuments(Filters.and(Filters.eq("_id", id), Filters.eq("is_success", Boolean.TRUE))) > 0;
+    public boolean isCatalogueUnchanged(String fingerprint) {
+        Document catalogue = collection.withDocumentClass(Document.class).find(Filters.eq("_id", CATALOGUE_ID)).projection(Projections.include(FINGERPRINT)).first();
+        return catalogue != null && fingerprint.equals(catalogue.getString(FINGERPRINT));
     }
 
+    /**
+     * load ids of all succeeded scripts in one query
+     *
+     * @return thread safe set
+     */
+    public Set<String> succeededScripts() {
+        Set<String> scriptIds = ConcurrentHashMap.newKeySet();
+        for (Document history : collection.withDocumentClass(Document.class).find(Filters.eq("is_success", Boolean.TRUE)).projection(Projections.include("_id"))) {
+            scriptIds.add(history.getString("_id"));
+        }
+        return scriptIds;
+    }
+
+    /**
+     * history is buffered once script completes and written by flushHistories when its group (scripts between barriers) completes,
+     * updated in place, so checkpoint of failed batch script is kept for next run, and cleared once succeeded
+     */
     public void saveHistory(String id, Script script, String collectionName, long elapsedTime, boolean isSuccess) {
-        FlywayScriptHistory flywayScriptHistory = new FlywayScriptHistory();
-        flywayScriptHistory.id = id;
-        flywayScriptHistory.collection = collectionName;
-        flywayScriptHistory.ticket = script.ticket();
-        flywayScriptHistory.description = script.description();
-        flywayScriptHistory.isSuccess = isSuccess;
-        flywayScriptHistory.elapsedTime = elapsedTime;
-        flywayScriptHistory.createdTime = ZonedDateTime.now();
-        collection.replaceOne(Filters.eq("_id", id), flywayScriptHistory, new ReplaceOptions().upsert(true));
+        Bson update = Updates.combine(
+            Updates.set("collection", collectionName),
+            Updates.set("ticket", script.ticket()),
+            Updates.set("description", script.description()),
+            Updates.set("is_success", isSuccess),
+            Updates.set("elapsed_time", elapsedTime),
+            Updates.set("created_time", ZonedDateTime.now()));
+        if (isSuccess) update = Updates.combine(update, Updates.unset(CHECKPOINTS));
+        synchronized (pendingHistories) {
+            pendingHistories.add(new UpdateOneModel<>(Filters.eq("_id", id), update, new UpdateOptions().upsert(true)));
+        }
+    }
+
+    /**
+     * write buffered histories in one bulk write, called by scheduler once group of scripts completed,
+     * if migration crashes before that, succeeded scripts of current group run again next time
+     */
+    public void flushHistories() {
+        List<WriteModel<FlywayScriptHistory>> writes;
+        synchronized (pendingHistories) {
+            writes = new ArrayList<>(pendingHistories);
+            pendingHistories.clear();
+        }
+        if (writes.isEmpty()) return;
+        collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        logger.info("save flyway histories, writes={}", writes.size());
+    }
+
+    /**
+     * save fingerprint after all scripts of catalogue succeeded, checked by isCatalogueUnchanged on next run
+     */
+    public void saveFingerprint(String fingerprint) {
+        collection.updateOne(Filters.eq("_id", CATALOGUE_ID), Updates.combine(Updates.set(FINGERPRINT, fingerprint), Updates.set("created_time", ZonedDateTime.now())),
+            new UpdateOptions().upsert(true));
+        logger.info("save flyway catalogue fingerprint, fingerprint={}", fingerprint);
+    }
+
+    /**
+     * checkpoint of unfinished batch call, one script may call batch update/replace/apply multiple times, each call has its own checkpoint
+     *
+     * @param id   script id
+     * @param call index of batch call within script
+     * @return null if batch call has not started or was finished
+     */
+    public BatchCheckpoint checkpoint(String id, int call) {
+        String field = checkpointField(call);
+        Document history = collection.withDocumentClass(Document.class).find(Filters.eq("_id", id)).projection(Projections.include(field)).first();
+        Document value = history == null ? null : history.getEmbedded(List.of(CHECKPOINTS, String.valueOf(call)), Document.class);
+        if (value == null) return null;
+        var checkpoint = new BatchCheckpoint();
+        checkpoint.lastId = value.get("last_id");
+        checkpoint.processedDocs = value.get("processed_docs", Number.class).longValue();
+        return checkpoint;
+    }
+
+    public void saveCheckpoint(String id, int call, BatchCheckpoint checkpoint) {
+        Document value = new Document("last_id", checkpoint.lastId).append("processed_docs", checkpoint.processedDocs);
+        collection.updateOne(Filters.eq("_id", id), Updates.set(checkpointField(call), value), new UpdateOptions().upsert(true));
+    }
+
+    // cleared once batch call finished, so rerun of script failed after it processes all documents again
+    public void clearCheckpoint(String id, int call) {
+        collection.updateOne(Filters.eq("_id", id), Updates.unset(checkpointField(call)));
+    }
+
+    private String checkpointField(int call) {
+        return CHECKPOINTS + "." + call;
     }
 }
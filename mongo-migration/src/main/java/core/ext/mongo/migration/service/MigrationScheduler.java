@@ -0,0 +1,234 @@
+package core.ext.mongo.migration.service;
+
+import core.ext.mongo.migration.domain.MigrationScript;
+import core.ext.mongo.migration.exception.FlywayExecuteException;
+import core.framework.util.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * run scripts concurrently in dependency order, scripts are given in scan order (class by class, sorted by order within class),
+ * classes are reordered by dependsOn first, then a script waits for previous script of same class, previous script of same collection,
+ * last barrier and its dependsOn, barrier waits for all previous scripts and all following scripts wait for it,
+ * ready scripts start in that order, so with parallelism 1 the execution order is same as sequential migration,
+ * scripts between barriers form a group, group completed callback runs before each barrier starts and after all scripts finished or failed
+ *
+ * @author Neal
+ */
+public class MigrationScheduler {
+    private final Logger logger = LoggerFactory.getLogger(MigrationScheduler.class);
+    private final int parallelism;
+
+    public MigrationScheduler(int parallelism) {
+        if (parallelism < 1) throw new Error("parallelism must be greater than 0, parallelism=" + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    public void run(List<MigrationScript> scannedScripts, Task task) throws Exception {
+        run(scannedScripts, task, () -> {
+        });
+    }
+
+    /**
+     * @param groupCompleted called on scheduler thread while no script is running, e.g. to save histories of group in one bulk write
+     */
+    public void run(List<MigrationScript> scannedScripts, Task task, Runnable groupCompleted) throws Exception {
+        List<MigrationScript> scripts = sort(scannedScripts);
+        int size = scripts.size();
+        List<Set<Integer>> dependencies = dependencies(scripts);
+        int[] pending = new int[size];
+        List<List<Integer>> dependents = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            dependents.add(new ArrayList<>());
+        }
+        for (int i = 0; i < size; i++) {
+            pending[i] = dependencies.get(i).size();
+            for (int dependency : dependencies.get(i)) {
+                dependents.get(dependency).add(i);
+            }
+        }
+        checkCycle(scripts, pending.clone(), dependents);
+        logger.info("migration plan, scripts={}, parallelism={}", size, parallelism);
+
+        var threadIndex = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> new Thread(runnable, "mongo-migration-" + threadIndex.incrementAndGet()));
+        try {
+            var completion = new ExecutorCompletionService<Integer>(executor);
+            var ready = new PriorityQueue<Integer>();
+            for (int i = 0; i < size; i++) {
+                if (pending[i] == 0) ready.add(i);
+            }
+            int running = 0;
+            Throwable failure = null;
+            while (true) {
+                while (failure == null && running < parallelism && !ready.isEmpty()) {    // stop scheduling after failure, let running scripts finish
+                    int index = ready.poll();
+                    if (scripts.get(index).barrier) groupCompleted.run();   // barrier waits for all previous scripts, nothing is running
+                    completion.submit(() -> {
+                        task.execute(scripts.get(index));
+                        return index;
+                    });
+                    running++;
+                }
+                if (running == 0) break;
+                Future<Integer> future = completion.take();
+                running--;
+                try {
+                    for (int dependent : dependents.get(future.get())) {
+                        if (--pending[dependent] == 0) ready.add(dependent);
+                    }
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = e.getCause();
+                    else failure.addSuppressed(e.getCause());
+                }
+            }
+            try {
+                groupCompleted.run();
+            } catch (RuntimeException e) {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+            if (failure instanceof Exception) throw (Exception) failure;
+            if (failure instanceof Error) throw (Error) failure;
+            if (failure != null) throw new Error(failure);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // order classes by dependsOn, stable to scan order, so implicit dependencies derived from order (same collection, barrier) follow explicit ones,
+    // e.g. class depends on class scanned after it with same collection
+    private List<MigrationScript> sort(List<MigrationScript> scripts) {
+        Map<Class<?>, List<MigrationScript>> classScripts = new LinkedHashMap<>();
+        Map<String, Set<Class<?>>> ticketClasses = new HashMap<>();
+        for (MigrationScript script : scripts) {
+            Class<?> flywayClass = script.instance.getClass();
+            classScripts.computeIfAbsent(flywayClass, key -> new ArrayList<>()).add(script);
+            ticketClasses.computeIfAbsent(script.script.ticket(), key -> new HashSet<>()).add(flywayClass);
+        }
+        Map<Class<?>, Set<Class<?>>> classDependencies = new HashMap<>();
+        for (Map.Entry<Class<?>, List<MigrationScript>> entry : classScripts.entrySet()) {
+            Set<Class<?>> dependencies = new HashSet<>();
+            for (MigrationScript script : entry.getValue()) {
+                dependencies.addAll(Arrays.asList(script.flyway.dependsOn()));
+                for (String ticket : script.script.dependsOn()) {
+                    dependencies.addAll(ticketClasses.getOrDefault(ticket, Set.of()));
+                }
+            }
+            dependencies.remove(entry.getKey());
+            dependencies.retainAll(classScripts.keySet());      // unknown dependsOn is reported by dependencies()
+            classDependencies.put(entry.getKey(), dependencies);
+        }
+
+        List<MigrationScript> sorted = new ArrayList<>(scripts.size());
+        Set<Class<?>> added = new HashSet<>();
+        while (added.size() < classScripts.size()) {
+            Class<?> next = null;
+            for (Class<?> flywayClass : classScripts.keySet()) {
+                if (added.contains(flywayClass)) continue;
+                if (added.containsAll(classDependencies.get(flywayClass))) {
+                    next = flywayClass;
+                    break;
+                }
+                if (next == null) next = flywayClass;   // circular dependencies between classes, keep scan order, cycle of scripts is checked later
+            }
+            added.add(next);
+            sorted.addAll(classScripts.get(next));
+        }
+        return sorted;
+    }
+
+    private List<Set<Integer>> dependencies(List<MigrationScript> scripts) {
+        Map<Class<?>, List<Integer>> classScripts = new HashMap<>();
+        Map<String, List<Integer>> ticketScripts = new HashMap<>();
+        for (int i = 0; i < scripts.size(); i++) {
+            MigrationScript script = scripts.get(i);
+            classScripts.computeIfAbsent(script.instance.getClass(), key -> new ArrayList<>()).add(i);
+            ticketScripts.computeIfAbsent(script.script.ticket(), key -> new ArrayList<>()).add(i);
+        }
+
+        List<Set<Integer>> dependencies = new ArrayList<>(scripts.size());
+        Map<Class<?>, Integer> lastOfClass = new HashMap<>();
+        Map<String, Integer> lastOfCollection = new HashMap<>();
+        List<Integer> sinceBarrier = new ArrayList<>();
+        Integer lastBarrier = null;
+        for (int i = 0; i < scripts.size(); i++) {
+            MigrationScript script = scripts.get(i);
+            Class<?> flywayClass = script.instance.getClass();
+            Set<Integer> scriptDependencies = new LinkedHashSet<>();
+            if (lastBarrier != null) scriptDependencies.add(lastBarrier);
+            if (script.barrier) scriptDependencies.addAll(sinceBarrier);
+            Integer previous = lastOfClass.get(flywayClass);
+            if (previous != null) scriptDependencies.add(previous);
+            previous = lastOfCollection.get(script.flyway.collection());
+            if (previous != null) scriptDependencies.add(previous);
+            for (Class<?> dependsOn : script.flyway.dependsOn()) {
+                List<Integer> indexes = classScripts.get(dependsOn);
+                if (indexes == null)
+                    throw new FlywayExecuteException(Strings.format("Flyway class {} depends on class {} which is not a scanned flyway class!", flywayClass.getName(), dependsOn.getName()));
+                scriptDependencies.addAll(indexes);
+            }
+            for (String ticket : script.script.dependsOn()) {
+                List<Integer> indexes = ticketScripts.get(ticket);
+                if (indexes == null)
+                    throw new FlywayExecuteException(Strings.format("Flyway script id #{} depends on ticket #{} which is not found!", script.id, ticket));
+                scriptDependencies.addAll(indexes);
+            }
+            scriptDependencies.remove(i);
+            dependencies.add(scriptDependencies);
+
+            lastOfClass.put(flywayClass, i);
+            lastOfCollection.put(script.flyway.collection(), i);
+            if (script.barrier) {
+                lastBarrier = i;
+                sinceBarrier.clear();
+            } else {
+                sinceBarrier.add(i);
+            }
+        }
+        return dependencies;
+    }
+
+    private void checkCycle(List<MigrationScript> scripts, int[] pending, List<List<Integer>> dependents) {
+        List<Integer> ready = new ArrayList<>();
+        for (int i = 0; i < pending.length; i++) {
+            if (pending[i] == 0) ready.add(i);
+        }
+        int visited = 0;
+        while (!ready.isEmpty()) {
+            int index = ready.remove(ready.size() - 1);
+            visited++;
+            for (int dependent : dependents.get(index)) {
+                if (--pending[dependent] == 0) ready.add(dependent);
+            }
+        }
+        if (visited == pending.length) return;
+        List<String> blocked = new ArrayList<>();
+        for (int i = 0; i < pending.length; i++) {
+            if (pending[i] > 0) blocked.add(scripts.get(i).id);
+        }
+        throw new FlywayExecuteException(Strings.format("Flyway scripts have circular dependencies, please check dependsOn, scripts={}", blocked));
+    }
+
+    @FunctionalInterface
+    public interface Task {
+        void execute(MigrationScript script) throws Exception;
+    }
+}
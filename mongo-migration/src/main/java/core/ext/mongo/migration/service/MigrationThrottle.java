@@ -0,0 +1,158 @@
+package core.ext.mongo.migration.service;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoDatabase;
+import core.framework.log.Markers;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * pause migration writes while secondary replication lag (replSetGetStatus) or server write ops rate (serverStatus opcounters) is over threshold,
+ * server status is sampled at most once per check interval, shared by all concurrent scripts,
+ * delayed and hidden members are excluded from lag, wait is bounded by max throttle time then proceeds with warning
+ *
+ * @author Neal
+ */
+public class MigrationThrottle {
+    private static final long CHECK_INTERVAL_IN_NANOS = Duration.ofSeconds(1).toNanos();
+    private final Logger logger = LoggerFactory.getLogger(MigrationThrottle.class);
+    private final MongoDatabase admin;
+    private final Duration maxReplicationLag;
+    private final long maxWriteOpsPerSecond;
+    private final Duration maxThrottleTime;
+    private volatile boolean checkReplicationLag;
+    private volatile boolean checkWriteOps;
+    private long lastCheckTime;
+    private String lastOverloadReason;
+    private long lastWriteOps = -1;
+    private long lastWriteOpsTime;
+
+    /**
+     * @param admin                admin database to run server commands
+     * @param maxReplicationLag    null to disable replication lag check
+     * @param maxWriteOpsPerSecond 0 to disable write ops check
+     * @param maxThrottleTime      max time of each wait, proceed with warning after
+     */
+    public MigrationThrottle(MongoDatabase admin, Duration maxReplicationLag, long maxWriteOpsPerSecond, Duration maxThrottleTime) {
+        this.admin = admin;
+        this.maxReplicationLag = maxReplicationLag;
+        this.maxWriteOpsPerSecond = maxWriteOpsPerSecond;
+        this.maxThrottleTime = maxThrottleTime;
+        checkReplicationLag = maxReplicationLag != null;
+        checkWriteOps = maxWriteOpsPerSecond > 0;
+        lastCheckTime = System.nanoTime() - CHECK_INTERVAL_IN_NANOS;
+    }
+
+    /**
+     * block until server is healthy or max throttle time reached, monitor is only held while checking server status
+     *
+     * @return throttled time in nanos
+     */
+    public long acquire() {
+        if (!checkReplicationLag && !checkWriteOps) return 0;
+        long start = System.nanoTime();
+        String reason = overloadReason();
+        if (reason == null) return 0;
+        try {
+            while (reason != null) {
+                if (System.nanoTime() - start >= maxThrottleTime.toNanos()) {
+                    logger.warn(Markers.errorCode("MIGRATION_THROTTLE_TIMEOUT"), "server is still overloaded after max throttle time, proceed migration writes, reason={}, maxThrottleTime={}", reason, maxThrottleTime);
+                    break;
+                }
+                Thread.sleep(CHECK_INTERVAL_IN_NANOS / 1_000_000);
+                reason = overloadReason();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Error(e);
+        }
+        return System.nanoTime() - start;
+    }
+
+    // null if healthy, sampled at most once per check interval, concurrent callers share last result
+    private synchronized String overloadReason() {
+        long now = System.nanoTime();
+        if (now - lastCheckTime < CHECK_INTERVAL_IN_NANOS) return lastOverloadReason;
+        lastOverloadReason = checkOverload();
+        lastCheckTime = System.nanoTime();
+        if (lastOverloadReason != null) logger.info("throttle migration writes, reason={}", lastOverloadReason);
+        return lastOverloadReason;
+    }
+
+    private String checkOverload() {
+        if (checkReplicationLag) {
+            Duration lag = replicationLag();
+            if (lag != null && lag.compareTo(maxReplicationLag) > 0) return "replicationLag=" + lag + ", maxReplicationLag=" + maxReplicationLag;
+        }
+        if (checkWriteOps) {
+            long writeOpsPerSecond = writeOpsPerSecond();
+            if (writeOpsPerSecond > maxWriteOpsPerSecond) return "writeOpsPerSecond=" + writeOpsPerSecond + ", maxWriteOpsPerSecond=" + maxWriteOpsPerSecond;
+        }
+        return null;
+    }
+
+    // lag between primary and slowest secondary, null if unknown
+    private Duration replicationLag() {
+        try {
+            Set<Object> excludedMembers = delayedOrHiddenMembers();
+            Document status = admin.runCommand(new Document("replSetGetStatus", 1));
+            Date primary = null;
+            Date slowestSecondary = null;
+            for (Document member : status.getList("members", Document.class, List.of())) {
+                Date optime = member.getDate("optimeDate");
+                if (optime == null) continue;
+                String state = member.getString("stateStr");
+                if ("PRIMARY".equals(state)) {
+                    primary = optime;
+                } else if ("SECONDARY".equals(state) && !excludedMembers.contains(member.get("_id")) && (slowestSecondary == null || optime.before(slowestSecondary))) {
+                    slowestSecondary = optime;
+                }
+            }
+            if (primary == null || slowestSecondary == null) return null;
+            return Duration.ofMillis(Math.max(0, primary.getTime() - slowestSecondary.getTime()));
+        } catch (MongoCommandException e) {
+            checkReplicationLag = false;    // e.g. standalone server or no clusterMonitor role
+            logger.warn(Markers.errorCode("MIGRATION_THROTTLE_DISABLED"), "failed to get replica set status, disable replication lag check, error={}", e.getMessage(), e);
+            return null;
+        }
+    }
+
+    // delayed members lag by design and hidden members (e.g. backup, analytics) don't serve reads, migration must not wait for them
+    private Set<Object> delayedOrHiddenMembers() {
+        Document config = admin.runCommand(new Document("replSetGetConfig", 1)).get("config", Document.class);
+        Set<Object> members = new HashSet<>();
+        if (config == null) return members;
+        for (Document member : config.getList("members", Document.class, List.of())) {
+            Number delay = member.get("secondaryDelaySecs", Number.class);
+            if (delay == null) delay = member.get("slaveDelay", Number.class);     // before mongo 5.0
+            if (delay != null && delay.longValue() > 0 || Boolean.TRUE.equals(member.getBoolean("hidden"))) members.add(member.get("_id"));
+        }
+        return members;
+    }
+
+    // rate of insert/update/delete since last sample, 0 for first sample
+    private long writeOpsPerSecond() {
+        try {
+            Document status = admin.runCommand(new Document("serverStatus", 1).append("opcounters", 1));
+            Document opcounters = status.get("opcounters", Document.class);
+            long writeOps = opcounters.get("insert", Number.class).longValue() + opcounters.get("update", Number.class).longValue() + opcounters.get("delete", Number.class).longValue();
+            long now = System.nanoTime();
+            long rate = 0;
+            if (lastWriteOps >= 0 && now > lastWriteOpsTime) rate = (writeOps - lastWriteOps) * 1_000_000_000L / (now - lastWriteOpsTime);
+            lastWriteOps = writeOps;
+            lastWriteOpsTime = now;
+            return rate;
+        } catch (MongoCommandException e) {
+            checkWriteOps = false;
+            logger.warn(Markers.errorCode("MIGRATION_THROTTLE_DISABLED"), "failed to get server status, disable write ops check, error={}", e.getMessage(), e);
+            return 0;
+        }
+    }
+}
@@ -1,29 +1,97 @@
 package core.ext.mongo.migration.util;
 
-import core.framework.util.Lists;
-
-import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.annotation.Annotation;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
 
 /**
  * @author Neal
  */
 public class ClassUtils {
-
+    /**
+     * scan package and sub packages in both directories and jars, classes are sorted by name
+     */
     public static List<Class<?>> getClassesWithAnnotation(String packageName, Class<? extends Annotation> annotation) throws ClassNotFoundException {
-        List<Class<?>> classes = Lists.newArrayList();
-        URL root = Thread.currentThread().getContextClassLoader().getResource(packageName.replace('.', '/'));
-        File[] files = new File(root.getFile()).listFiles((dir, name) -> name.endsWith(".class"));
-        if (files == null) return List.of();
-        for (File file : files) {
-            String className = file.getName().replaceAll(".class$", "");
-            Class<?> cls = Class.forName(packageName + "." + className);
+        return getClassesWithAnnotation(classNames(packageName), annotation);
+    }
+
+    public static List<Class<?>> getClassesWithAnnotation(Collection<String> classNames, Class<? extends Annotation> annotation) throws ClassNotFoundException {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        List<Class<?>> classes = new ArrayList<>();
+        for (String className : classNames) {
+            Class<?> cls = Class.forName(className, false, classLoader);
             if (cls.isAnnotationPresent(annotation)) {
                 classes.add(cls);
             }
         }
         return classes;
     }
+
+    /**
+     * list class names of package and sub packages without loading classes, sorted by name
+     */
+    public static Set<String> classNames(String packageName) {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        String path = packageName.replace('.', '/');
+        Set<String> classNames = new TreeSet<>();
+        try {
+            Enumeration<URL> roots = classLoader.getResources(path);
+            while (roots.hasMoreElements()) {
+                URL root = roots.nextElement();
+                if ("jar".equals(root.getProtocol())) {
+                    scanJar(root, path, classNames);
+                } else if ("file".equals(root.getProtocol())) {
+                    scanDirectory(Path.of(root.toURI()), packageName, classNames);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (URISyntaxException e) {
+            throw new Error(e);
+        }
+        return classNames;
+    }
+
+    private static void scanJar(URL root, String path, Set<String> classNames) throws IOException {
+        var connection = (JarURLConnection) root.openConnection();
+        connection.setUseCaches(false);     // close jar file after scanning
+        try (JarFile jar = connection.getJarFile()) {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (name.startsWith(path + "/") && isClass(name)) {
+                    classNames.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+                }
+            }
+        }
+    }
+
+    private static void scanDirectory(Path directory, String packageName, Set<String> classNames) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.forEach(file -> {
+                String name = directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                if (isClass(name)) {
+                    classNames.add(packageName + "." + name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+                }
+            });
+        }
+    }
+
+    private static boolean isClass(String name) {
+        return name.endsWith(".class") && !name.endsWith("module-info.class") && !name.endsWith("package-info.class");
+    }
 }
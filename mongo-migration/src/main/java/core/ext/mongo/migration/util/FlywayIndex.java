@@ -0,0 +1,111 @@
+package core.ext.mongo.migration.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * index of @Flyway classes and @Script methods generated by FlywayIndexProcessor at compile time, one entry per line, fields separated by tab
+ * flyway  className
+ * script  className  methodName  order  runAt(comma separated)
+ *
+ * @author Neal
+ */
+public final class FlywayIndex {
+    public static final String RESOURCE = "META-INF/mongo-migration/flyway.index";
+    public static final Comparator<IndexedScript> ORDER = Comparator.<IndexedScript>comparingInt(script -> script.order).thenComparing(script -> script.methodName);
+    static final String FLYWAY = "flyway";
+    static final String SCRIPT = "script";
+
+    /**
+     * merge all index resources in classpath
+     *
+     * @return null if no index found
+     */
+    public static FlywayIndex load(ClassLoader classLoader) {
+        try {
+            Enumeration<URL> resources = classLoader.getResources(RESOURCE);
+            if (!resources.hasMoreElements()) return null;
+            var index = new FlywayIndex();
+            while (resources.hasMoreElements()) {
+                URLConnection connection = resources.nextElement().openConnection();
+                connection.setUseCaches(false);     // not to hold jar file
+                try (InputStream stream = connection.getInputStream()) {
+                    index.parse(stream);
+                }
+            }
+            for (List<IndexedScript> scripts : index.scripts.values()) {
+                scripts.sort(ORDER);
+            }
+            return index;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static String flywayLine(String className) {
+        return String.join("\t", FLYWAY, className);
+    }
+
+    public static String scriptLine(String className, String methodName, int order, List<String> runAt) {
+        return String.join("\t", SCRIPT, className, methodName, String.valueOf(order), String.join(",", runAt));
+    }
+
+    private final Map<String, List<IndexedScript>> scripts = new TreeMap<>();    // sorted by class name to keep migration order stable
+
+    void parse(InputStream stream) throws IOException {
+        var reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty() || line.charAt(0) == '#') continue;
+            String[] fields = line.split("\t", -1);
+            if (FLYWAY.equals(fields[0]) && fields.length == 2) {
+                scripts.putIfAbsent(fields[1], new ArrayList<>());
+            } else if (SCRIPT.equals(fields[0]) && fields.length == 5) {
+                var script = new IndexedScript();
+                script.methodName = fields[2];
+                script.order = Integer.parseInt(fields[3]);
+                script.runAt = fields[4].isEmpty() ? List.of() : List.of(fields[4].split(","));
+                scripts.computeIfAbsent(fields[1], key -> new ArrayList<>()).add(script);
+            } else {
+                throw new Error("invalid flyway index entry, line=" + line);
+            }
+        }
+    }
+
+    /**
+     * @return flyway class names in package and sub packages
+     */
+    public List<String> classNames(String packageName) {
+        String prefix = packageName + ".";
+        List<String> packageClassNames = new ArrayList<>();
+        for (String className : scripts.keySet()) {
+            if (className.startsWith(prefix)) packageClassNames.add(className);
+        }
+        return packageClassNames;
+    }
+
+    /**
+     * @return scripts of flyway class sorted by order
+     */
+    public List<IndexedScript> scripts(String className) {
+        return scripts.getOrDefault(className, List.of());
+    }
+
+    public static class IndexedScript {
+        public String methodName;
+        public int order;
+        public List<String> runAt;      // empty if runs at all environments
+    }
+}
@@ -0,0 +1,150 @@
+package core.ext.mongo.migration;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Updates;
+import core.ext.mongo.migration.domain.BatchCheckpoint;
+import core.ext.mongo.migration.service.FlywayService;
+import core.ext.mongo.migration.service.MigrationThrottle;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Neal
+ */
+class BatchMigrationContextTest {
+    private final Map<Integer, BatchCheckpoint> checkpoints = new HashMap<>();
+    private MongoCollection<Document> collection;
+    private FlywayService flywayService;
+    private BatchMigrationContext context;
+    private BsonValue lastId;     // of current chunk query
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void createContext() {
+        List<Document> documents = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            documents.add(new Document("_id", i));
+        }
+        collection = mock(MongoCollection.class);
+        FindIterable<Document> iterable = mock(FindIterable.class);
+        when(collection.find(any(Bson.class))).thenAnswer(invocation -> {
+            lastId = lastId(invocation.getArgument(0));
+            return iterable;
+        });
+        when(iterable.sort(any())).thenReturn(iterable);
+        when(iterable.limit(anyInt())).thenReturn(iterable);
+        when(iterable.into(anyList())).thenAnswer(invocation -> {
+            List<Document> results = invocation.getArgument(0);
+            for (Document document : documents) {
+                if (lastId == null || document.getInteger("_id") > lastId.asInt32().getValue()) results.add(document);
+                if (results.size() == 2) break;
+            }
+            return results;
+        });
+        when(collection.bulkWrite(anyList(), any(BulkWriteOptions.class))).thenReturn(mock(BulkWriteResult.class));
+
+        flywayService = mock(FlywayService.class);
+        when(flywayService.checkpoint(anyString(), anyInt())).thenAnswer(invocation -> checkpoints.get(invocation.<Integer>getArgument(1)));
+        doAnswer(invocation -> checkpoints.put(invocation.getArgument(1), invocation.getArgument(2))).when(flywayService).saveCheckpoint(anyString(), anyInt(), any());
+        doAnswer(invocation -> checkpoints.remove(invocation.<Integer>getArgument(1))).when(flywayService).clearCheckpoint(anyString(), anyInt());
+
+        context = new BatchMigrationContext(collection, "script", flywayService, new MigrationThrottle(null, null, 0, Duration.ZERO)).batchSize(2);
+    }
+
+    @Test
+    void applyInChunks() {
+        long processedDocs = context.update(document -> Updates.set("migrated", true));
+
+        assertThat(processedDocs).isEqualTo(5);
+        verify(collection, times(3)).bulkWrite(anyList(), any(BulkWriteOptions.class));
+        verify(flywayService, times(3)).saveCheckpoint(anyString(), anyInt(), any());
+        assertThat(checkpoints).isEmpty();
+    }
+
+    @Test
+    void resumeFromCheckpoint() {
+        var checkpoint = new BatchCheckpoint();
+        checkpoint.lastId = 2;
+        checkpoint.processedDocs = 2;
+        checkpoints.put(0, checkpoint);
+
+        List<Object> ids = new ArrayList<>();
+        long processedDocs = context.apply(document -> {
+            ids.add(document.get("_id"));
+            return null;
+        });
+
+        assertThat(processedDocs).isEqualTo(5);
+        assertThat(ids).containsExactly(3, 4, 5);
+        verify(collection, times(0)).bulkWrite(anyList(), any(BulkWriteOptions.class));
+        assertThat(checkpoints).isEmpty();
+    }
+
+    @Test
+    void checkpointPerCall() {
+        var checkpoint = new BatchCheckpoint();
+        checkpoint.lastId = 4;
+        checkpoint.processedDocs = 4;
+        checkpoints.put(1, checkpoint);
+
+        List<Object> firstCallIds = new ArrayList<>();
+        context.apply(document -> {
+            firstCallIds.add(document.get("_id"));
+            return null;
+        });
+        List<Object> secondCallIds = new ArrayList<>();
+        context.apply(document -> {
+            secondCallIds.add(document.get("_id"));
+            return null;
+        });
+
+        assertThat(firstCallIds).containsExactly(1, 2, 3, 4, 5);
+        assertThat(secondCallIds).containsExactly(5);
+    }
+
+    // _id of $gt condition in chunk filter, null for first chunk
+    private BsonValue lastId(Bson filter) {
+        return gt(filter.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry()));
+    }
+
+    private BsonValue gt(BsonValue value) {
+        if (value.isDocument()) {
+            for (Map.Entry<String, BsonValue> entry : value.asDocument().entrySet()) {
+                if ("$gt".equals(entry.getKey())) return entry.getValue();
+                BsonValue result = gt(entry.getValue());
+                if (result != null) return result;
+            }
+        } else if (value.isArray()) {
+            for (BsonValue item : value.asArray()) {
+                BsonValue result = gt(item);
+                if (result != null) return result;
+            }
+        }
+        return null;
+    }
+}
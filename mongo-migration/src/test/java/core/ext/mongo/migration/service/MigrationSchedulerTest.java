@@ -0,0 +1,131 @@
+package core.ext.mongo.migration.service;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import core.ext.mongo.migration.annotation.Flyway;
+import core.ext.mongo.migration.annotation.Script;
+import core.ext.mongo.migration.domain.MigrationScript;
+import core.ext.mongo.migration.exception.FlywayExecuteException;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author Neal
+ */
+class MigrationSchedulerTest {
+    @Test
+    void runSequentially() throws Exception {
+        List<String> executed = new ArrayList<>();
+        new MigrationScheduler(1).run(scripts(new ItemTestScript(), new OrderTestScript()), script -> executed.add(script.method.getName()));
+
+        assertThat(executed).containsExactly("createItemIndex", "updateItem", "createIndexes", "createOrderIndex");
+    }
+
+    @Test
+    void runConcurrently() throws Exception {
+        List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        new MigrationScheduler(4).run(scripts(new OrderTestScript(), new ItemTestScript()), script -> executed.add(script.method.getName()));
+
+        assertThat(executed).hasSize(4).containsOnlyOnce("createOrderIndex", "createItemIndex", "updateItem");
+        assertThat(executed.indexOf("createItemIndex")).isLessThan(executed.indexOf("updateItem"));
+        assertThat(executed.get(3)).isEqualTo("createIndexes");
+    }
+
+    @Test
+    void groupCompleted() throws Exception {
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        new MigrationScheduler(4).run(scripts(new ItemTestScript(), new OrderTestScript()), script -> events.add(script.method.getName()), () -> events.add("groupCompleted"));
+
+        assertThat(events).containsExactly("createItemIndex", "updateItem", "groupCompleted", "createIndexes", "createOrderIndex", "groupCompleted");
+    }
+
+    @Test
+    void forwardDependsOn() throws Exception {
+        List<String> executed = new ArrayList<>();
+        new MigrationScheduler(1).run(scripts(new CustomerIndexTestScript(), new CustomerTestScript()), script -> executed.add(script.method.getName()));
+
+        assertThat(executed).containsExactly("createCustomer", "createCustomerIndex");
+    }
+
+    @Test
+    void circularDependency() {
+        assertThatThrownBy(() -> new MigrationScheduler(2).run(scripts(new CircularTestScript()), script -> {
+        })).isInstanceOf(FlywayExecuteException.class)
+            .hasMessageContaining("circular dependencies");
+    }
+
+    private List<MigrationScript> scripts(Object... instances) {
+        List<MigrationScript> scripts = new ArrayList<>();
+        for (Object instance : instances) {
+            Flyway flyway = instance.getClass().getDeclaredAnnotation(Flyway.class);
+            List<Method> methods = new ArrayList<>(List.of(instance.getClass().getDeclaredMethods()));
+            methods.sort((method1, method2) -> Integer.compare(method1.getDeclaredAnnotation(Script.class).order(), method2.getDeclaredAnnotation(Script.class).order()));
+            for (Method method : methods) {
+                var script = new MigrationScript();
+                script.id = flyway.collection() + "_" + method.getName();
+                script.flyway = flyway;
+                script.script = method.getDeclaredAnnotation(Script.class);
+                script.instance = instance;
+                script.method = method;
+                script.barrier = MongoDatabase.class.equals(method.getParameterTypes()[0]);
+                scripts.add(script);
+            }
+        }
+        return scripts;
+    }
+
+    @Flyway(collection = "items")
+    public static class ItemTestScript {
+        @Script(ticket = "T-1", description = "item index", testMethod = "none", order = 1)
+        public void createItemIndex(MongoCollection<Document> collection) {
+        }
+
+        @Script(ticket = "T-2", description = "update item", testMethod = "none", order = 2)
+        public void updateItem(MongoCollection<Document> collection) {
+        }
+
+        @Script(ticket = "T-3", description = "cross collection", testMethod = "none", order = 3)
+        public void createIndexes(MongoDatabase database) {
+        }
+    }
+
+    @Flyway(collection = "orders")
+    public static class OrderTestScript {
+        @Script(ticket = "T-4", description = "order index", testMethod = "none", order = 1)
+        public void createOrderIndex(MongoCollection<Document> collection) {
+        }
+    }
+
+    @Flyway(collection = "customers", dependsOn = CustomerTestScript.class)
+    public static class CustomerIndexTestScript {
+        @Script(ticket = "T-7", description = "customer index", testMethod = "none", order = 1)
+        public void createCustomerIndex(MongoCollection<Document> collection) {
+        }
+    }
+
+    @Flyway(collection = "customers")
+    public static class CustomerTestScript {
+        @Script(ticket = "T-8", description = "customer", testMethod = "none", order = 1)
+        public void createCustomer(MongoCollection<Document> collection) {
+        }
+    }
+
+    @Flyway(collection = "circular")
+    public static class CircularTestScript {
+        @Script(ticket = "T-5", description = "first", testMethod = "none", order = 1, dependsOn = "T-6")
+        public void first(MongoCollection<Document> collection) {
+        }
+
+        @Script(ticket = "T-6", description = "second", testMethod = "none", order = 2)
+        public void second(MongoCollection<Document> collection) {
+        }
+    }
+}
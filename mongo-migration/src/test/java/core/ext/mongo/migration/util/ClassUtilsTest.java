@@ -0,0 +1,39 @@
+package core.ext.mongo.migration.util;
+
+import core.ext.mongo.migration.annotation.Flyway;
+import core.ext.mongo.migration.util.FlywayIndex.IndexedScript;
+import core.ext.mongo.test.script.ItemScript;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Neal
+ */
+class ClassUtilsTest {
+    @Test
+    void getClassesWithAnnotation() throws ClassNotFoundException {
+        assertThat(ClassUtils.getClassesWithAnnotation("core.ext.mongo.test", Flyway.class)).containsExactly(ItemScript.class);
+    }
+
+    @Test
+    void loadIndex() {
+        FlywayIndex index = FlywayIndex.load(Thread.currentThread().getContextClassLoader());
+
+        assertThat(index).isNotNull();
+        assertThat(index.classNames("core.ext.mongo.test")).containsExactly(ItemScript.class.getName());
+
+        List<IndexedScript> scripts = index.scripts(ItemScript.class.getName());
+        assertThat(scripts).extracting(script -> script.methodName)
+            .containsExactly("initIndex", "initBatchNumber", "addIndexItemNumber", "executeCrossScript", "initCollect");
+        assertThat(scripts.get(2).runAt).containsExactly("uat", "prod");
+        assertThat(scripts.get(0).runAt).isEmpty();
+    }
+
+    @Test
+    void classNames() {
+        assertThat(ClassUtils.classNames("core.ext.mongo.test")).contains(ItemScript.class.getName());
+    }
+}
@@ -4,6 +4,7 @@ import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.Updates;
+import core.ext.mongo.migration.BatchMigrationContext;
 import core.ext.mongo.migration.annotation.Flyway;
 import core.ext.mongo.migration.annotation.Script;
 import org.bson.Document;
@@ -23,9 +24,10 @@ public class ItemScript {
     }
 
     @Script(ticket = "MD-242", description = "Galley Warning - Usage Unit Unique", testMethod = "testInitBatchNumber", order = 1)
-    public void initBatchNumber(MongoCollection<Document> collection) {
-        collection.updateMany(Filters.and(Filters.ne("_id", null), Filters.eq("batch_number_group_code", null)),
-            Updates.set("batch_number_group_code", "test2"));
+    public void initBatchNumber(BatchMigrationContext context) {
+        context.filter(Filters.eq("batch_number_group_code", null))
+            .batchSize(500)
+            .update(document -> Updates.set("batch_number_group_code", "test2"));
     }
 
     public Boolean testInitBatchNumber(MongoCollection<Document> collection) {